@@ -0,0 +1,238 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size bitfield that can be read and updated from several threads without locks.
+ *
+ * Bits are packed 64 to a word in an AtomicLongArray, bit i in word i / 64 at
+ * position i % 64 (the same layout as BitSet.toLongArray). Setting a bit is a
+ * compare-and-set on its word; reads see each word atomically. The number of
+ * set bits is kept up to date, and a version counter increases on every change
+ * so callers can skip recomputing anything derived from an unchanged bitfield.
+ */
+public class AtomicBitfield {
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger cardinality;
+    private final AtomicLong version;
+
+    public AtomicBitfield(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+        this.cardinality = new AtomicInteger();
+        this.version = new AtomicLong();
+    }
+
+    /**
+     * Bitfield initialised from words in BitSet.toLongArray layout; bits past size are dropped
+     */
+    public AtomicBitfield(int size, long[] initialWords) {
+        long[] copy = new long[(size + 63) >>> 6];
+        System.arraycopy(initialWords, 0, copy, 0, Math.min(copy.length, initialWords.length));
+        int count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] &= validMask(size, i);
+            count += Long.bitCount(copy[i]);
+        }
+        this.size = size;
+        this.words = new AtomicLongArray(copy);
+        this.cardinality = new AtomicInteger(count);
+        this.version = new AtomicLong();
+    }
+
+    /**
+     * Set a bit; returns true if it was clear before
+     */
+    public boolean set(int index) {
+        checkIndex(index);
+        int wordIndex = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long word = words.get(wordIndex);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(wordIndex, word, word | mask)) {
+                cardinality.incrementAndGet();
+                version.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Clear a bit; returns true if it was set before
+     */
+    public boolean clear(int index) {
+        checkIndex(index);
+        int wordIndex = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long word = words.get(wordIndex);
+            if ((word & mask) == 0) {
+                return false;
+            }
+            if (words.compareAndSet(wordIndex, word, word & ~mask)) {
+                cardinality.decrementAndGet();
+                version.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Test a bit; out-of-range indexes are never set
+     */
+    public boolean get(int index) {
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Set every bit that is set in the given words (BitSet.toLongArray layout)
+     */
+    public void or(long[] other) {
+        int count = Math.min(other.length, words.length());
+        for (int i = 0; i < count; i++) {
+            long add = other[i] & validMask(size, i);
+            while (add != 0) {
+                long word = words.get(i);
+                long added = add & ~word;
+                if (added == 0) {
+                    break;
+                }
+                if (words.compareAndSet(i, word, word | added)) {
+                    cardinality.addAndGet(Long.bitCount(added));
+                    version.incrementAndGet();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Index of the first set bit at or after fromIndex, or -1
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (fromIndex >= size) {
+            return -1;
+        }
+        int wordIndex = fromIndex >>> 6;
+        long word = words.get(wordIndex) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++wordIndex >= words.length()) {
+                return -1;
+            }
+            word = words.get(wordIndex);
+        }
+    }
+
+    /**
+     * Check if this bitfield has any bit that other lacks ("peer has and we lack")
+     */
+    public boolean hasAnyNotIn(AtomicBitfield other) {
+        int count = Math.min(words.length(), other.words.length());
+        for (int i = 0; i < count; i++) {
+            if ((words.get(i) & ~other.words.get(i)) != 0) {
+                return true;
+            }
+        }
+        for (int i = count; i < words.length(); i++) {
+            if (words.get(i) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of bits set here and clear in other
+     */
+    public int countNotIn(AtomicBitfield other) {
+        int total = 0;
+        for (int i = 0; i < words.length(); i++) {
+            long theirs = i < other.words.length() ? other.words.get(i) : 0;
+            total += Long.bitCount(words.get(i) & ~theirs);
+        }
+        return total;
+    }
+
+    /**
+     * Index of the n-th (0-based) bit set here and clear in other, or -1 if there are fewer
+     */
+    public int nthNotIn(AtomicBitfield other, int n) {
+        for (int i = 0; i < words.length(); i++) {
+            long theirs = i < other.words.length() ? other.words.get(i) : 0;
+            long word = words.get(i) & ~theirs;
+            int bits = Long.bitCount(word);
+            if (n >= bits) {
+                n -= bits;
+                continue;
+            }
+            for (; n > 0; n--) {
+                word &= word - 1; // Drop the lowest set bit
+            }
+            return (i << 6) + Long.numberOfTrailingZeros(word);
+        }
+        return -1;
+    }
+
+    /**
+     * Copy of the words; each word is read atomically
+     */
+    public long[] snapshot() {
+        long[] copy = new long[words.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = words.get(i);
+        }
+        return copy;
+    }
+
+    public long getWord(int wordIndex) {
+        return words.get(wordIndex);
+    }
+
+    public int getWordCount() {
+        return words.length();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    public boolean isFull() {
+        return cardinality.get() == size;
+    }
+
+    /**
+     * Increases on every change
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    private static long validMask(int size, int wordIndex) {
+        int remaining = size - (wordIndex << 6);
+        return remaining >= 64 ? -1L : (1L << remaining) - 1;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Bit index " + index + " out of range 0.." + (size - 1));
+        }
+    }
+}
@@ -12,6 +12,28 @@ public class CommonConfig {
     private long fileSize;
     private int pieceSize;
     private int numberOfPieces;
+    private String transportMode = "blocking";
+    private int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private String threadMode = "platform"; // Threads for blocking connection handlers
+    private boolean protocolExtensions = true; // Offer Extensions in the handshake
+    private int haveBatchMillis = 50; // 0 sends each HAVE as soon as the piece is stored
+    private int sendQueueBytes = 1024 * 1024; // Piece data queued per connection; later pieces wait their turn
+    private String storageBackend = "raf";
+    private String durabilityMode = PieceWriter.DURABILITY_SYNC;
+    private int syncBatchPieces = 32;
+    private long syncBatchBytes = 8L * 1024 * 1024;
+    private long syncIntervalMillis = 100;
+    private int requestQueueDepth = 2;
+    private int maxRequestQueueDepth = 32;
+    private int blockSize = 0; // 0 requests whole pieces
+    private boolean endGame = true;
+    private long requestTimeoutMillis = 5000; // Until the first round trip is measured
+    private long minRequestTimeoutMillis = 500;
+    private int logBufferSize = 8192;
+    private String logOverflowPolicy = Logger.OVERFLOW_BLOCK;
+    private boolean eventJournal = false;
+    private int metricsIntervalSeconds = 0; // 0 disables the metrics file
+    private int statsPort = 0; // 0 disables the stats server
 
     public CommonConfig(String configPath) throws IOException {
         readConfig(configPath);
@@ -54,6 +76,72 @@ public class CommonConfig {
                 case "PieceSize":
                     pieceSize = Integer.parseInt(value);
                     break;
+                case "TransportMode":
+                    transportMode = value.toLowerCase();
+                    break;
+                case "IoThreads":
+                    ioThreads = Integer.parseInt(value);
+                    break;
+                case "ThreadMode":
+                    threadMode = value.toLowerCase();
+                    break;
+                case "ProtocolExtensions":
+                    protocolExtensions = value.equals("1") || value.equalsIgnoreCase("true");
+                    break;
+                case "HaveBatchMs":
+                    haveBatchMillis = Integer.parseInt(value);
+                    break;
+                case "SendQueueBytes":
+                    sendQueueBytes = Integer.parseInt(value);
+                    break;
+                case "StorageBackend":
+                    storageBackend = value.toLowerCase();
+                    break;
+                case "DurabilityMode":
+                    durabilityMode = value.toLowerCase();
+                    break;
+                case "SyncBatchPieces":
+                    syncBatchPieces = Integer.parseInt(value);
+                    break;
+                case "SyncBatchBytes":
+                    syncBatchBytes = Long.parseLong(value);
+                    break;
+                case "SyncIntervalMs":
+                    syncIntervalMillis = Long.parseLong(value);
+                    break;
+                case "RequestQueueDepth":
+                    requestQueueDepth = Integer.parseInt(value);
+                    break;
+                case "MaxRequestQueueDepth":
+                    maxRequestQueueDepth = Integer.parseInt(value);
+                    break;
+                case "BlockSize":
+                    blockSize = Integer.parseInt(value);
+                    break;
+                case "EndGame":
+                    endGame = value.equals("1") || value.equalsIgnoreCase("true");
+                    break;
+                case "RequestTimeoutMs":
+                    requestTimeoutMillis = Long.parseLong(value);
+                    break;
+                case "MinRequestTimeoutMs":
+                    minRequestTimeoutMillis = Long.parseLong(value);
+                    break;
+                case "LogBufferSize":
+                    logBufferSize = Integer.parseInt(value);
+                    break;
+                case "LogOverflowPolicy":
+                    logOverflowPolicy = value.toLowerCase();
+                    break;
+                case "EventJournal":
+                    eventJournal = value.equals("1") || value.equalsIgnoreCase("true");
+                    break;
+                case "MetricsInterval":
+                    metricsIntervalSeconds = Integer.parseInt(value);
+                    break;
+                case "StatsPort":
+                    statsPort = Integer.parseInt(value);
+                    break;
             }
         }
         scanner.close();
@@ -71,5 +159,30 @@ public class CommonConfig {
     public long getFileSize() { return fileSize; }
     public int getPieceSize() { return pieceSize; }
     public int getNumberOfPieces() { return numberOfPieces; }
+    public String getTransportMode() { return transportMode; }
+    public boolean useNioTransport() { return transportMode.equals("nio"); }
+    public int getIoThreads() { return ioThreads; }
+    public String getThreadMode() { return threadMode; }
+    public boolean useVirtualThreads() { return threadMode.equals("virtual"); }
+    public boolean useProtocolExtensions() { return protocolExtensions; }
+    public int getHaveBatchMillis() { return haveBatchMillis; }
+    public int getSendQueueBytes() { return sendQueueBytes; }
+    public String getStorageBackend() { return storageBackend; }
+    public String getDurabilityMode() { return durabilityMode; }
+    public int getSyncBatchPieces() { return syncBatchPieces; }
+    public long getSyncBatchBytes() { return syncBatchBytes; }
+    public long getSyncIntervalMillis() { return syncIntervalMillis; }
+    public int getRequestQueueDepth() { return requestQueueDepth; }
+    public int getMaxRequestQueueDepth() { return maxRequestQueueDepth; }
+    public int getBlockSize() { return blockSize; }
+    public boolean useBlockMode() { return blockSize > 0 && blockSize < pieceSize; }
+    public boolean useEndGame() { return endGame; }
+    public long getRequestTimeoutMillis() { return requestTimeoutMillis; }
+    public long getMinRequestTimeoutMillis() { return minRequestTimeoutMillis; }
+    public int getLogBufferSize() { return logBufferSize; }
+    public String getLogOverflowPolicy() { return logOverflowPolicy; }
+    public boolean useEventJournal() { return eventJournal; }
+    public int getMetricsIntervalSeconds() { return metricsIntervalSeconds; }
+    public int getStatsPort() { return statsPort; }
 }
 
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+
+/**
+ * Outbound side of a blocking connection. Any thread may queue messages; a
+ * single writer task drains the queue, so messages never interleave, and
+ * everything queued together goes out in one buffered write and flush instead
+ * of a segment per message.
+ *
+ * Piece messages are queued as a header and a file region; the writer reads
+ * or transfers the body when it gets to them. Queued piece data is limited by
+ * a SendBudget: once a slow peer has that much waiting, further pieces wait in
+ * the budget as descriptors. Nothing here blocks the caller, so a reader
+ * answering requests keeps reading even while its peer is slow to drain.
+ */
+public class ConnectionWriter implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Outbound CLOSE = new Outbound(new byte[0], -1, 0, -1, 0);
+
+    private final BufferedOutputStream out;
+    private final SocketChannel socketChannel; // Null if the socket has no channel for transferTo
+    private final FileManager fileManager;
+    private final LongConsumer pieceBytesSent;
+    private final LinkedBlockingQueue<Outbound> queue;
+    private final SendBudget<Outbound> pieceBudget;
+    private final AtomicBoolean closed;
+    private volatile IOException failure;
+
+    public ConnectionWriter(OutputStream out, SocketChannel socketChannel, FileManager fileManager,
+                            int maxQueuedPieceBytes, LongConsumer pieceBytesSent) {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.socketChannel = socketChannel;
+        this.fileManager = fileManager;
+        this.pieceBytesSent = pieceBytesSent;
+        this.queue = new LinkedBlockingQueue<>();
+        this.pieceBudget = new SendBudget<>(maxQueuedPieceBytes, piece -> piece.length, queue::add);
+        this.closed = new AtomicBoolean(false);
+    }
+
+    /**
+     * Start draining the queue on the given executor
+     */
+    public void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    /**
+     * Queue a complete message
+     */
+    public void send(byte[] data) throws IOException {
+        checkOpen();
+        queue.add(new Outbound(data, -1, 0, -1, 0));
+    }
+
+    /**
+     * Queue a piece message: the header, then length bytes of the file from position,
+     * sent with transferTo when the socket has a channel. Returns false if the piece
+     * was dropped because too many are already waiting for the budget.
+     */
+    public boolean sendPiece(byte[] header, long position, int length, int pieceIndex, int offset)
+            throws IOException {
+        checkOpen();
+        return pieceBudget.offer(new Outbound(header, position, length, pieceIndex, offset));
+    }
+
+    /**
+     * Drop a queued, not yet started piece message; returns true if one was dropped
+     */
+    public boolean cancel(int pieceIndex, int offset) {
+        boolean dropped = pieceBudget.removeDeferred(entry -> entry.pieceIndex == pieceIndex
+                                                               && entry.offset == offset) > 0;
+        for (Outbound entry : queue) {
+            if (entry.pieceIndex == pieceIndex && entry.offset == offset && queue.remove(entry)) {
+                pieceBudget.release(entry);
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Drop every queued piece message, for when the peer is choked and will discard them.
+     * Returns the number dropped.
+     */
+    public int cancelPieces() {
+        // Waiting pieces first, so none is admitted into the queue behind the sweep
+        int dropped = pieceBudget.removeDeferred(entry -> true);
+        for (Outbound entry : queue) {
+            if (entry.pieceIndex >= 0 && queue.remove(entry)) {
+                pieceBudget.release(entry);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Bytes of piece data waiting to be written
+     */
+    public int getQueuedPieceBytes() {
+        return pieceBudget.getQueuedBytes();
+    }
+
+    /**
+     * Pieces held back by the budget, not yet in the queue
+     */
+    public int getDeferredPieces() {
+        return pieceBudget.getDeferredCount();
+    }
+
+    /**
+     * Messages waiting to be written
+     */
+    public int getQueuedMessages() {
+        return queue.size();
+    }
+
+    /**
+     * Stop the writer once what is already queued has been written
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            pieceBudget.clear();
+            queue.add(CLOSE);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Connection closed: " + failure.getMessage());
+        }
+        if (closed.get()) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Outbound next = queue.take();
+                // Write everything already queued, then flush once
+                do {
+                    if (next == CLOSE) {
+                        out.flush();
+                        return;
+                    }
+                    write(next);
+                    next = queue.poll();
+                } while (next != null);
+                out.flush();
+            }
+        } catch (IOException e) {
+            failure = e;
+            // The reader sees the socket fail and closes the connection
+            try {
+                out.close();
+            } catch (IOException closeError) {
+                // Already failing
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+            queue.clear();
+        }
+    }
+
+    private void write(Outbound entry) throws IOException {
+        out.write(entry.data);
+        if (entry.pieceIndex < 0) {
+            return;
+        }
+        if (socketChannel != null) {
+            // Header goes out with whatever was buffered ahead of it, then the body straight from the file
+            out.flush();
+            long sent = 0;
+            while (sent < entry.length) {
+                sent += fileManager.transferTo(entry.position + sent, entry.length - sent, socketChannel);
+            }
+        } else {
+            byte[] piece = fileManager.readPiece(entry.pieceIndex);
+            out.write(piece, entry.offset, entry.length);
+        }
+        pieceBudget.release(entry);
+        pieceBytesSent.accept(entry.length);
+    }
+
+    /**
+     * A queued message; for piece messages, the block it carries and where in the file its body is
+     */
+    private static class Outbound {
+        final byte[] data;
+        final long position; // File offset of the body
+        final int length;    // Piece bytes carried
+        final int pieceIndex; // -1 for messages other than PIECE
+        final int offset;
+
+        Outbound(byte[] data, long position, int length, int pieceIndex, int offset) {
+            this.data = data;
+            this.position = position;
+            this.length = length;
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+        }
+    }
+}
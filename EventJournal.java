@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary copy of the peer log for post-mortems on large swarms.
+ *
+ * The file starts with a 16-byte header (magic, version, peer ID, record size)
+ * followed by fixed 24-byte little-endian records:
+ *
+ *   long timestamp   wall-clock nanoseconds since the epoch
+ *   int  type        Logger event type
+ *   int  peer        remote peer ID
+ *   int  piece       piece index
+ *   int  count       piece count, or the number of NEIGHBOR records that follow
+ *
+ * A preferred-neighbors event is one record whose count is the number of
+ * neighbors, followed by one NEIGHBOR record per neighbor. Records are gathered
+ * in a direct buffer and written to a FileChannel when it fills or on flush.
+ * Only the Logger thread writes to a journal. JournalDecoder turns a journal
+ * back into log text or CSV.
+ */
+public class EventJournal {
+    static final int MAGIC = 0x4A505032; // "2PPJ" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 24;
+    static final int NEIGHBOR = 100; // Record type for one entry of a preferred-neighbors list
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    public EventJournal(String path, int peerId) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 4096).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(peerId).putInt(RECORD_SIZE);
+    }
+
+    /**
+     * Append an event; peers is only used by preferred-neighbors events
+     */
+    public void append(long epochNanos, int type, int otherPeerId, int pieceIndex, int count,
+                       int[] peers) throws IOException {
+        if (peers != null) {
+            put(epochNanos, type, otherPeerId, pieceIndex, peers.length);
+            for (int peer : peers) {
+                put(epochNanos, NEIGHBOR, peer, 0, 0);
+            }
+            return;
+        }
+        put(epochNanos, type, otherPeerId, pieceIndex, count);
+    }
+
+    /**
+     * Write buffered records to the file
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void put(long epochNanos, int type, int otherPeerId, int pieceIndex, int count) throws IOException {
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        buffer.putLong(epochNanos).putInt(type).putInt(otherPeerId).putInt(pieceIndex).putInt(count);
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Protocol extensions negotiated in the handshake. Bytes 18-27 of the handshake
+ * are zero in the base protocol; a peer that supports extensions puts a
+ * big-endian bit mask of them in bytes 24-27 (bytes 18-23 stay zero for later
+ * use). A connection uses an extension only if both handshakes carry its bit,
+ * so a peer that sends all zeros gets the base protocol.
+ */
+public final class Extensions {
+    /** REQUEST, PIECE and CANCEL carry (index, offset, length) blocks */
+    public static final int BLOCK_REQUESTS = 1;
+    /** CANCEL is understood and drops a queued piece */
+    public static final int CANCEL = 1 << 1;
+    /** HAVE_BATCH announces many pieces in one message */
+    public static final int HAVE_BATCH = 1 << 2;
+    /** HAVE_ALL replaces the bitfield of a peer with the whole file */
+    public static final int HAVE_ALL = 1 << 3;
+
+    /** Everything this implementation supports */
+    public static final int SUPPORTED = BLOCK_REQUESTS | CANCEL | HAVE_BATCH | HAVE_ALL;
+
+    private Extensions() {
+    }
+
+    /**
+     * The extensions both ends of a connection can use
+     */
+    public static int agree(int local, int remote) {
+        return local & remote;
+    }
+
+    /**
+     * Names of the extensions in a mask, for logs and stats
+     */
+    public static String describe(int extensions) {
+        StringBuilder names = new StringBuilder();
+        appendIf(names, extensions, BLOCK_REQUESTS, "block_requests");
+        appendIf(names, extensions, CANCEL, "cancel");
+        appendIf(names, extensions, HAVE_BATCH, "have_batch");
+        appendIf(names, extensions, HAVE_ALL, "have_all");
+        return names.length() == 0 ? "none" : names.toString();
+    }
+
+    private static void appendIf(StringBuilder names, int extensions, int bit, String name) {
+        if ((extensions & bit) != 0) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(name);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 import java.io.*;
-import java.util.BitSet;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Manages file pieces - reading, writing, and tracking which pieces are available
@@ -9,14 +9,23 @@ public class FileManager {
     private int pieceSize;
     private int numberOfPieces;
     private long fileSize;
-    private BitSet bitfield;
-    private RandomAccessFile file;
+    private AtomicBitfield bitfield;
+    private AtomicBitfield pending; // Received pieces queued in the write-behind writer
+    private PieceStore store;
+    private PieceWriter writer;
+    private PieceWriter.Listener pieceListener;
 
     public FileManager(String peerDirectory, String fileName, int pieceSize, long fileSize, boolean hasFile) throws IOException {
+        this(peerDirectory, fileName, pieceSize, fileSize, hasFile, "raf");
+    }
+
+    public FileManager(String peerDirectory, String fileName, int pieceSize, long fileSize, boolean hasFile,
+                       String storageBackend) throws IOException {
         this.pieceSize = pieceSize;
         this.fileSize = fileSize;
         this.numberOfPieces = (int) Math.ceil((double) fileSize / pieceSize);
-        this.bitfield = new BitSet(numberOfPieces);
+        this.bitfield = new AtomicBitfield(numberOfPieces);
+        this.pending = new AtomicBitfield(numberOfPieces);
         
         // Create peer directory if it doesn't exist
         File dir = new File(peerDirectory);
@@ -47,17 +56,120 @@ public class FileManager {
             }
         }
         
-        this.file = new RandomAccessFile(filePath, "rw");
+        if (storageBackend.equals("mmap")) {
+            this.store = new MappedPieceStore(filePath, fileSize);
+        } else {
+            this.store = new RandomAccessPieceStore(filePath);
+        }
+    }
+
+    /**
+     * Record disk write and sync latency in the registry. Call before startWriteBehind.
+     */
+    public void enableMetrics(Metrics metrics) {
+        this.store = new TimedPieceStore(store, metrics.histogram("disk.write_us"), metrics.histogram("disk.sync_us"));
     }
 
     /**
      * Check if a piece is available
      */
     public boolean hasPiece(int pieceIndex) {
+        return bitfield.get(pieceIndex);
+    }
+
+    /**
+     * Check if a piece is available or already queued for writing
+     */
+    public boolean isPieceReceived(int pieceIndex) {
+        // Stored pieces are set in bitfield before they leave pending, so this never misses one
+        return bitfield.get(pieceIndex) || pending.get(pieceIndex);
+    }
+
+    /**
+     * Start the write-behind writer. The listener is told about each piece once it
+     * is durable according to the mode, which is also when the piece becomes available.
+     */
+    public void startWriteBehind(PieceWriter.Listener listener, String durabilityMode,
+                                 int syncBatchPieces, long syncBatchBytes, long syncIntervalMillis) {
+        this.pieceListener = listener;
+        this.writer = new PieceWriter(store, new PieceWriter.Listener() {
+            @Override
+            public void pieceStored(int pieceIndex) {
+                bitfield.set(pieceIndex);
+                pending.clear(pieceIndex);
+                pieceListener.pieceStored(pieceIndex);
+            }
+
+            @Override
+            public void pieceFailed(int pieceIndex, IOException cause) {
+                pending.clear(pieceIndex);
+                pieceListener.pieceFailed(pieceIndex, cause);
+            }
+        }, durabilityMode, syncBatchPieces, syncBatchBytes, syncIntervalMillis);
+    }
+
+    /**
+     * Queue a received piece for the write-behind writer. Returns false if the
+     * piece is already stored or queued.
+     */
+    public boolean queuePiece(int pieceIndex, byte[] pieceData) throws IOException {
+        return queuePiece(pieceIndex, pieceData, true);
+    }
+
+    /**
+     * Queue a received piece, either waiting for room in the write-behind queue or,
+     * for a caller that must not block, queueing it regardless; such a caller checks
+     * isWriteQueueFull afterwards. Returns false if the piece is already stored or queued.
+     */
+    public boolean queuePiece(int pieceIndex, byte[] pieceData, boolean wait) throws IOException {
         if (pieceIndex < 0 || pieceIndex >= numberOfPieces) {
+            throw new IOException("Invalid piece index: " + pieceIndex);
+        }
+        // Claiming the pending bit decides which of two racing copies gets written
+        if (bitfield.get(pieceIndex) || !pending.set(pieceIndex)) {
             return false;
         }
-        return bitfield.get(pieceIndex);
+
+        if (writer == null) {
+            writePiece(pieceIndex, pieceData);
+            pending.clear(pieceIndex);
+            if (pieceListener != null) {
+                pieceListener.pieceStored(pieceIndex);
+            }
+            return true;
+        }
+
+        if (wait) {
+            writer.submit(pieceIndex, getPieceOffset(pieceIndex), pieceData);
+        } else {
+            writer.submitNoWait(pieceIndex, getPieceOffset(pieceIndex), pieceData);
+        }
+        return true;
+    }
+
+    /**
+     * True while the write-behind queue is at capacity
+     */
+    public boolean isWriteQueueFull() {
+        return writer != null && writer.isFull();
+    }
+
+    /**
+     * Run the callback once the write-behind queue has room again
+     */
+    public void whenWriteQueueHasRoom(Runnable callback) {
+        if (writer == null) {
+            callback.run();
+        } else {
+            writer.whenRoom(callback);
+        }
+    }
+
+    /**
+     * Number of pieces waiting in the write-behind queue
+     */
+    public int getWriteQueueSize() {
+        return writer != null ? writer.getQueueSize() : 0;
     }
 
     /**
@@ -71,9 +183,11 @@ public class FileManager {
         int actualPieceSize = getActualPieceSize(pieceIndex);
         byte[] pieceData = new byte[actualPieceSize];
         
+        JfrEvents.PieceRead event = new JfrEvents.PieceRead();
+        event.begin();
         long offset = (long) pieceIndex * pieceSize;
-        file.seek(offset);
-        file.readFully(pieceData);
+        store.read(offset, pieceData, 0, actualPieceSize);
+        event.finish(pieceIndex, actualPieceSize, false);
         
         return pieceData;
     }
@@ -86,18 +200,39 @@ public class FileManager {
             throw new IOException("Invalid piece index: " + pieceIndex);
         }
 
+        JfrEvents.PieceWrite event = new JfrEvents.PieceWrite();
+        event.begin();
         long offset = (long) pieceIndex * pieceSize;
-        file.seek(offset);
-        file.write(pieceData);
-        file.getFD().sync(); // Force write to disk
+        store.write(offset, pieceData, 0, pieceData.length);
+        store.sync(); // Force write to disk
+        event.finish(pieceIndex, pieceData.length, false);
         
         bitfield.set(pieceIndex);
     }
 
+    /**
+     * Send bytes of the file straight to a channel without copying them onto the heap.
+     * May write fewer than count bytes on a non-blocking channel.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        JfrEvents.PieceRead event = new JfrEvents.PieceRead();
+        event.begin();
+        long transferred = store.transferTo(position, count, target);
+        event.finish((int) (position / pieceSize), transferred, true);
+        return transferred;
+    }
+
+    /**
+     * Get the file offset where a piece starts
+     */
+    public long getPieceOffset(int pieceIndex) {
+        return (long) pieceIndex * pieceSize;
+    }
+
     /**
      * Get the actual size of a piece (last piece may be smaller)
      */
-    private int getActualPieceSize(int pieceIndex) {
+    public int getActualPieceSize(int pieceIndex) {
         if (pieceIndex == numberOfPieces - 1) {
             // Last piece
             long remainder = fileSize % pieceSize;
@@ -107,22 +242,17 @@ public class FileManager {
     }
 
     /**
-     * Get bitfield
+     * Get bitfield. This is the live bitfield, not a copy; callers must not modify it.
      */
-    public BitSet getBitfield() {
-        return (BitSet) bitfield.clone();
+    public AtomicBitfield getBitfield() {
+        return bitfield;
     }
 
     /**
      * Check if file is complete
      */
     public boolean isFileComplete() {
-        for (int i = 0; i < numberOfPieces; i++) {
-            if (!bitfield.get(i)) {
-                return false;
-            }
-        }
-        return true;
+        return bitfield.isFull();
     }
 
     /**
@@ -143,8 +273,11 @@ public class FileManager {
      * Close the file
      */
     public void close() throws IOException {
-        if (file != null) {
-            file.close();
+        if (writer != null) {
+            writer.close();
+        }
+        if (store != null) {
+            store.close();
         }
     }
 }
@@ -0,0 +1,253 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom Flight Recorder events for the protocol and disk hot paths, so a
+ * recording lines up CPU samples with messages, requests, choke rounds and
+ * disk I/O per piece. Record with, for example:
+ *
+ *   java -XX:StartFlightRecording=filename=peer.jfr,settings=profile peerProcess 1001
+ *
+ * Without a recording every event reports itself disabled, fields are only
+ * filled in after shouldCommit(), and stack traces are off, so the cost on
+ * the hot path is a branch.
+ */
+public final class JfrEvents {
+    private static final String[] MESSAGE_NAMES = {
+        "choke", "unchoke", "interested", "not_interested", "have", "bitfield", "request", "piece", "cancel",
+        "have_batch", "have_all"
+    };
+
+    private JfrEvents() {
+    }
+
+    /**
+     * Received message, timed from dispatch to return from handleMessage
+     */
+    @Name("p2p.MessageDispatch")
+    @Label("Message Dispatch")
+    @Category({"P2P", "Protocol"})
+    @StackTrace(false)
+    static class MessageDispatch extends Event {
+        @Label("Peer")
+        int peerId;
+
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Piece")
+        @Description("Piece named in the payload, or -1")
+        int pieceIndex;
+
+        @Label("Payload Length")
+        @DataAmount
+        int payloadLength;
+
+        void finish(int peerId, Message message) {
+            end();
+            if (!shouldCommit()) {
+                return;
+            }
+            byte type = message.getMessageType();
+            byte[] payload = message.getPayload();
+            this.peerId = peerId;
+            this.messageType = type >= 0 && type < MESSAGE_NAMES.length ? MESSAGE_NAMES[type] : "type_" + type;
+            this.payloadLength = payload != null ? payload.length : 0;
+            this.pieceIndex = -1;
+            if (payload != null && payload.length >= 4 && (type == Message.HAVE || type == Message.REQUEST
+                    || type == Message.PIECE || type == Message.CANCEL || type == Message.HAVE_BATCH)) {
+                // Every piece-carrying payload starts with the big-endian index (the first, for HAVE_BATCH)
+                this.pieceIndex = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16)
+                        | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Piece or block read from the store, by copy or by transferTo
+     */
+    @Name("p2p.PieceRead")
+    @Label("Piece Read")
+    @Category({"P2P", "Disk"})
+    @StackTrace(false)
+    static class PieceRead extends Event {
+        @Label("Piece")
+        int pieceIndex;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Zero Copy")
+        boolean zeroCopy;
+
+        void finish(int pieceIndex, long bytes, boolean zeroCopy) {
+            end();
+            if (shouldCommit()) {
+                this.pieceIndex = pieceIndex;
+                this.bytes = bytes;
+                this.zeroCopy = zeroCopy;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Piece written to the store, inline or by the write-behind thread
+     */
+    @Name("p2p.PieceWrite")
+    @Label("Piece Write")
+    @Category({"P2P", "Disk"})
+    @StackTrace(false)
+    static class PieceWrite extends Event {
+        @Label("Piece")
+        int pieceIndex;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Write Behind")
+        boolean writeBehind;
+
+        void finish(int pieceIndex, long bytes, boolean writeBehind) {
+            end();
+            if (shouldCommit()) {
+                this.pieceIndex = pieceIndex;
+                this.bytes = bytes;
+                this.writeBehind = writeBehind;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Store forced to disk for a batch of written pieces
+     */
+    @Name("p2p.PieceSync")
+    @Label("Piece Sync")
+    @Category({"P2P", "Disk"})
+    @StackTrace(false)
+    static class PieceSync extends Event {
+        @Label("Pieces")
+        int pieces;
+
+        void finish(int pieces) {
+            end();
+            if (shouldCommit()) {
+                this.pieces = pieces;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * One run of the preferred-neighbor selection
+     */
+    @Name("p2p.ChokeRound")
+    @Label("Choke Round")
+    @Category({"P2P", "Choking"})
+    @StackTrace(false)
+    static class ChokeRound extends Event {
+        @Label("Interested Peers")
+        int interested;
+
+        @Label("Preferred Neighbors")
+        String preferred;
+
+        @Label("Seeding")
+        @Description("Neighbors were chosen at random because the file is complete")
+        boolean seeding;
+
+        void finish(int interested, Iterable<Integer> preferred, boolean seeding) {
+            end();
+            if (shouldCommit()) {
+                this.interested = interested;
+                this.preferred = preferred == null ? "" : String.valueOf(preferred);
+                this.seeding = seeding;
+                commit();
+            }
+        }
+    }
+
+    @Name("p2p.RequestIssued")
+    @Label("Request Issued")
+    @Category({"P2P", "Requests"})
+    @StackTrace(false)
+    static class RequestIssued extends Event {
+        @Label("Peer")
+        int peerId;
+
+        @Label("Piece")
+        int pieceIndex;
+
+        @Label("Offset")
+        int offset;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+
+        @Label("Outstanding")
+        @Description("Requests outstanding to this peer including this one")
+        int outstanding;
+
+        @Label("End Game")
+        boolean endGame;
+    }
+
+    @Name("p2p.RequestCompleted")
+    @Label("Request Completed")
+    @Category({"P2P", "Requests"})
+    @StackTrace(false)
+    static class RequestCompleted extends Event {
+        @Label("Peer")
+        int peerId;
+
+        @Label("Piece")
+        int pieceIndex;
+
+        @Label("Offset")
+        int offset;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+
+        @Label("Round Trip")
+        @Timespan(Timespan.NANOSECONDS)
+        long rtt;
+    }
+
+    static void requestIssued(int peerId, int pieceIndex, int offset, int length, int outstanding, boolean endGame) {
+        RequestIssued event = new RequestIssued();
+        if (event.shouldCommit()) {
+            event.peerId = peerId;
+            event.pieceIndex = pieceIndex;
+            event.offset = offset;
+            event.length = length;
+            event.outstanding = outstanding;
+            event.endGame = endGame;
+            event.commit();
+        }
+    }
+
+    static void requestCompleted(int peerId, int pieceIndex, int offset, int length, long rttNanos) {
+        RequestCompleted event = new RequestCompleted();
+        if (event.shouldCommit()) {
+            event.peerId = peerId;
+            event.pieceIndex = pieceIndex;
+            event.offset = offset;
+            event.length = length;
+            event.rtt = rttNanos;
+            event.commit();
+        }
+    }
+}
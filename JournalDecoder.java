@@ -0,0 +1,133 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+/**
+ * Offline decoder for EventJournal files.
+ *
+ * Usage: java JournalDecoder <journal> [text|csv]
+ *
+ * text (the default) prints the same lines as log_peer_[ID].log; csv prints one
+ * row per event with the nanosecond timestamp and raw fields.
+ */
+public class JournalDecoder {
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java JournalDecoder <journal> [text|csv]");
+            System.exit(1);
+        }
+        boolean csv = args.length == 2 && args[1].equalsIgnoreCase("csv");
+
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024))) {
+            decode(args[0], csv, out);
+        } catch (IOException e) {
+            System.err.println("Error reading journal: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Decode a journal file to text log lines or CSV rows
+     */
+    public static void decode(String path, boolean csv, PrintWriter out) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+            ByteBuffer buffer = ByteBuffer.allocate(EventJournal.RECORD_SIZE * 4096).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, EventJournal.HEADER_SIZE);
+            if (buffer.getInt() != EventJournal.MAGIC) {
+                throw new IOException("Not an event journal: " + path);
+            }
+            int version = buffer.getInt();
+            int peerId = buffer.getInt();
+            int recordSize = buffer.getInt();
+            if (version != EventJournal.VERSION || recordSize != EventJournal.RECORD_SIZE) {
+                throw new IOException("Unsupported journal version " + version + " with record size " + recordSize);
+            }
+
+            if (csv) {
+                out.println("timestamp_nanos,event,peer,remote_peer,piece,count");
+            }
+            StringBuilder sb = new StringBuilder(160);
+            buffer.clear().flip();
+            while (true) {
+                if (buffer.remaining() < EventJournal.RECORD_SIZE && !refill(channel, buffer)) {
+                    break;
+                }
+                long timestamp = buffer.getLong();
+                int type = buffer.getInt();
+                int otherPeerId = buffer.getInt();
+                int pieceIndex = buffer.getInt();
+                int count = buffer.getInt();
+
+                int[] peers = null;
+                if (type == Logger.PREFERRED_NEIGHBORS) {
+                    peers = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        if (buffer.remaining() < EventJournal.RECORD_SIZE && !refill(channel, buffer)) {
+                            throw new EOFException("Journal ends inside a neighbor list");
+                        }
+                        buffer.position(buffer.position() + 12); // Timestamp and type
+                        peers[i] = buffer.getInt();
+                        buffer.position(buffer.position() + 8);
+                    }
+                }
+
+                sb.setLength(0);
+                if (csv) {
+                    appendCsv(sb, timestamp, type, peerId, otherPeerId, pieceIndex, count, peers);
+                } else if (type >= 0 && type < Logger.EVENT_NAMES.length) {
+                    String time = Logger.TIME_FORMAT.format(Instant.ofEpochSecond(0, timestamp));
+                    Logger.appendLine(sb, time, peerId, (byte) type, otherPeerId, pieceIndex, count, peers);
+                } else {
+                    continue; // Unknown event from a newer writer
+                }
+                out.print(sb);
+            }
+        }
+    }
+
+    private static void appendCsv(StringBuilder sb, long timestamp, int type, int peerId,
+                                  int otherPeerId, int pieceIndex, int count, int[] peers) {
+        String name = type >= 0 && type < Logger.EVENT_NAMES.length ? Logger.EVENT_NAMES[type] : "type_" + type;
+        sb.append(timestamp).append(',').append(name).append(',').append(peerId).append(',');
+        if (peers != null) {
+            // Neighbor list in one quoted field
+            sb.append('"');
+            for (int i = 0; i < peers.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(peers[i]);
+            }
+            sb.append('"');
+        } else {
+            sb.append(otherPeerId);
+        }
+        sb.append(',').append(pieceIndex).append(',').append(count).append(System.lineSeparator());
+    }
+
+    /**
+     * Move leftover bytes to the front and read more; false at end of file
+     */
+    private static boolean refill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.compact();
+        while (buffer.position() < EventJournal.RECORD_SIZE) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Journal header is truncated");
+            }
+        }
+        buffer.flip();
+    }
+}
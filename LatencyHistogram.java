@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values (typically latencies in microseconds).
+ *
+ * Values are counted in power-of-two buckets: bucket 0 holds 0, bucket b holds
+ * [2^(b-1), 2^b). Recording is two atomic adds and a max update, so it is cheap
+ * enough for every request and disk write. Percentiles are reported as the
+ * upper bound of the bucket they fall in, so they are accurate to within 2x.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Consistent-enough copy for reporting; concurrent records may be partly included
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(total, sum.get(), max.get(), counts);
+    }
+
+    /**
+     * Point-in-time view of a histogram
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long[] counts;
+
+        Snapshot(long count, long sum, long max, long[] counts) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.counts = counts;
+        }
+
+        public long getCount() { return count; }
+        public long getMax() { return max; }
+        public double getMean() { return count == 0 ? 0 : (double) sum / count; }
+
+        /**
+         * Upper bound of the bucket holding the given quantile (0..1), capped at the maximum
+         */
+        public long getPercentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, max);
+                }
+            }
+            return max;
+        }
+    }
+}
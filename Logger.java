@@ -1,96 +1,376 @@
 import java.io.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Logger for peer events
+ * Logger for peer events.
+ *
+ * Callers only copy a few ints into a preallocated slot of a ring buffer; a
+ * background thread formats the lines and writes them, flushing once per batch.
+ * Slots are claimed with a CAS on the tail and published by writing their
+ * sequence number, so any number of threads can log without a lock. When the
+ * buffer is full the caller either waits for room or the event is dropped,
+ * depending on the overflow policy.
  */
 public class Logger {
-    private PrintWriter writer;
-    private SimpleDateFormat dateFormat;
-    private int peerId;
+    public static final String OVERFLOW_BLOCK = "block"; // Wait for room; never lose a line
+    public static final String OVERFLOW_DROP = "drop";   // Drop the event and count it
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 50_000_000L;
+    private static final long FULL_PARK_NANOS = 100_000L;
+    static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // Event types; also the type codes of EventJournal records
+    static final byte CONNECTION_MADE = 0;
+    static final byte CONNECTION_RECEIVED = 1;
+    static final byte PREFERRED_NEIGHBORS = 2;
+    static final byte OPTIMISTIC_NEIGHBOR = 3;
+    static final byte UNCHOKED = 4;
+    static final byte CHOKED = 5;
+    static final byte RECEIVED_HAVE = 6;
+    static final byte RECEIVED_INTERESTED = 7;
+    static final byte RECEIVED_NOT_INTERESTED = 8;
+    static final byte DOWNLOADED_PIECE = 9;
+    static final byte DOWNLOAD_COMPLETE = 10;
+    static final String[] EVENT_NAMES = {
+        "connection_made", "connection_received", "preferred_neighbors", "optimistic_neighbor",
+        "unchoked", "choked", "received_have", "received_interested", "received_not_interested",
+        "downloaded_piece", "download_complete"
+    };
+
+    private final Writer writer;
+    private final EventJournal journal; // Null unless the binary journal is enabled
+    private final int peerId;
+    private final boolean dropOnOverflow;
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong tail; // Next sequence to claim
+    private volatile long head;    // Next sequence to write; only the logger thread advances it
+    private final AtomicLong dropped;
+    private final Thread thread;
+    private volatile boolean consumerWaiting;
+    private volatile boolean closed;
+
+    // Only used by the logger thread
+    private final StringBuilder line;
+    private char[] chars;
+    private long reportedDrops;
+    private final long baseEpochNanos;
+    private final long baseNanoTime;
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTime;
 
     public Logger(int peerId, String logFilePath) throws IOException {
+        this(peerId, logFilePath, DEFAULT_CAPACITY, OVERFLOW_BLOCK, null);
+    }
+
+    /**
+     * journalPath may be null; otherwise every event is also appended to a binary EventJournal
+     */
+    public Logger(int peerId, String logFilePath, int capacity, String overflowPolicy,
+                  String journalPath) throws IOException {
         this.peerId = peerId;
-        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        
+        this.dropOnOverflow = overflowPolicy.equals(OVERFLOW_DROP);
+
         File logFile = new File(logFilePath);
         // Create parent directory if it doesn't exist
         if (logFile.getParentFile() != null) {
             logFile.getParentFile().mkdirs();
         }
-        
-        this.writer = new PrintWriter(new FileWriter(logFile, false)); // Overwrite mode
-    }
 
-    private String getCurrentTime() {
-        return dateFormat.format(new Date());
+        this.writer = new BufferedWriter(new FileWriter(logFile, false), 64 * 1024); // Overwrite mode
+        this.journal = journalPath != null ? new EventJournal(journalPath, peerId) : null;
+
+        // Events carry System.nanoTime(); this pair turns it into wall-clock time
+        Instant now = Instant.now();
+        this.baseNanoTime = System.nanoTime();
+        this.baseEpochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = size - 1;
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.line = new StringBuilder(160);
+        this.chars = new char[160];
+
+        this.thread = new Thread(this::run, "logger-" + peerId);
+        this.thread.setDaemon(true);
+        this.thread.start();
     }
 
     public void logTcpConnectionMade(int otherPeerId) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " makes a connection to Peer " + otherPeerId + ".");
-        writer.flush();
+        publish(CONNECTION_MADE, otherPeerId, 0, 0, null);
     }
 
     public void logTcpConnectionReceived(int otherPeerId) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " is connected from Peer " + otherPeerId + ".");
-        writer.flush();
+        publish(CONNECTION_RECEIVED, otherPeerId, 0, 0, null);
     }
 
     public void logPreferredNeighborsChanged(int[] preferredNeighbors) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < preferredNeighbors.length; i++) {
-            if (i > 0) sb.append(",");
-            sb.append(preferredNeighbors[i]);
-        }
-        writer.println(getCurrentTime() + ": Peer " + peerId + " has the preferred neighbors [" + sb.toString() + "].");
-        writer.flush();
+        publish(PREFERRED_NEIGHBORS, 0, 0, 0, preferredNeighbors.clone());
     }
 
     public void logOptimisticallyUnchokedNeighborChanged(int otherPeerId) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " has the optimistically unchoked neighbor " + otherPeerId + ".");
-        writer.flush();
+        publish(OPTIMISTIC_NEIGHBOR, otherPeerId, 0, 0, null);
     }
 
     public void logUnchoked(int otherPeerId) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " is unchoked by " + otherPeerId + ".");
-        writer.flush();
+        publish(UNCHOKED, otherPeerId, 0, 0, null);
     }
 
     public void logChoked(int otherPeerId) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " is choked by " + otherPeerId + ".");
-        writer.flush();
+        publish(CHOKED, otherPeerId, 0, 0, null);
     }
 
     public void logReceivedHave(int otherPeerId, int pieceIndex) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " received the 'have' message from " + otherPeerId + " for the piece " + pieceIndex + ".");
-        writer.flush();
+        publish(RECEIVED_HAVE, otherPeerId, pieceIndex, 0, null);
     }
 
     public void logReceivedInterested(int otherPeerId) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " received the 'interested' message from " + otherPeerId + ".");
-        writer.flush();
+        publish(RECEIVED_INTERESTED, otherPeerId, 0, 0, null);
     }
 
     public void logReceivedNotInterested(int otherPeerId) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " received the 'not interested' message from " + otherPeerId + ".");
-        writer.flush();
+        publish(RECEIVED_NOT_INTERESTED, otherPeerId, 0, 0, null);
     }
 
     public void logDownloadedPiece(int pieceIndex, int otherPeerId, int numberOfPieces) {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " has downloaded the piece " + pieceIndex + " from " + otherPeerId + ". Now the number of pieces it has is " + numberOfPieces + ".");
-        writer.flush();
+        publish(DOWNLOADED_PIECE, otherPeerId, pieceIndex, numberOfPieces, null);
     }
 
     public void logDownloadComplete() {
-        writer.println(getCurrentTime() + ": Peer " + peerId + " has downloaded the complete file.");
-        writer.flush();
+        publish(DOWNLOAD_COMPLETE, 0, 0, 0, null);
+    }
+
+    /**
+     * Number of events dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
     }
 
+    /**
+     * Number of events waiting to be written
+     */
+    public int getQueueSize() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Write everything logged so far and stop the logger thread
+     */
     public void close() {
-        if (writer != null) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
             writer.close();
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing log: " + e.getMessage());
         }
     }
-}
 
+    private void publish(byte type, int otherPeerId, int pieceIndex, int count, int[] peers) {
+        long sequence;
+        while (true) {
+            if (closed) {
+                return;
+            }
+            sequence = tail.get();
+            if (sequence - head >= ring.length) {
+                if (dropOnOverflow) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                // Park rather than spin so the logger thread gets the CPU to drain the buffer
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+                continue;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Event event = ring[(int) (sequence & mask)];
+        event.type = type;
+        event.timeNanos = System.nanoTime();
+        event.otherPeerId = otherPeerId;
+        event.pieceIndex = pieceIndex;
+        event.count = count;
+        event.peers = peers;
+        event.sequence = sequence + 1; // Publish; 0 marks a slot that was never written
+
+        if (consumerWaiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        int batch = 0;
+        while (true) {
+            long next = head;
+            Event event = ring[(int) (next & mask)];
+            if (event.sequence == next + 1) {
+                write(event);
+                event.peers = null;
+                head = next + 1;
+                if (++batch >= MAX_BATCH) {
+                    flush();
+                    batch = 0;
+                }
+                continue;
+            }
+
+            if (batch > 0) {
+                flush();
+                batch = 0;
+            }
+            if (closed && tail.get() == next) {
+                flush();
+                return;
+            }
+
+            // Recheck after announcing we are about to sleep so a publish cannot be missed
+            consumerWaiting = true;
+            if (event.sequence != next + 1 && !closed) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            } else if (closed) {
+                Thread.yield(); // A producer has claimed a slot but not published it yet
+            }
+            consumerWaiting = false;
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+            if (journal != null) {
+                journal.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log: " + e.getMessage());
+        }
+        long total = dropped.get();
+        if (total > reportedDrops) {
+            System.err.println("Logger dropped " + (total - reportedDrops) + " events because the buffer was full");
+            reportedDrops = total;
+        }
+    }
+
+    private void write(Event event) {
+        long epochNanos = baseEpochNanos + (event.timeNanos - baseNanoTime);
+        StringBuilder sb = line;
+        sb.setLength(0);
+        appendLine(sb, formatTime(epochNanos / 1_000_000L), peerId, event.type,
+                   event.otherPeerId, event.pieceIndex, event.count, event.peers);
+        if (chars.length < sb.length()) {
+            chars = new char[sb.length() * 2];
+        }
+        sb.getChars(0, sb.length(), chars, 0);
+        try {
+            writer.write(chars, 0, sb.length());
+            if (journal != null) {
+                journal.append(epochNanos, event.type, event.otherPeerId, event.pieceIndex, event.count, event.peers);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Append one log line, including the line separator, in the format of the peer log
+     */
+    static void appendLine(StringBuilder sb, String time, int peerId, byte type,
+                           int otherPeerId, int pieceIndex, int count, int[] peers) {
+        sb.append(time).append(": Peer ").append(peerId);
+        switch (type) {
+            case CONNECTION_MADE:
+                sb.append(" makes a connection to Peer ").append(otherPeerId).append('.');
+                break;
+            case CONNECTION_RECEIVED:
+                sb.append(" is connected from Peer ").append(otherPeerId).append('.');
+                break;
+            case PREFERRED_NEIGHBORS:
+                sb.append(" has the preferred neighbors [");
+                for (int i = 0; i < peers.length; i++) {
+                    if (i > 0) sb.append(',');
+                    sb.append(peers[i]);
+                }
+                sb.append("].");
+                break;
+            case OPTIMISTIC_NEIGHBOR:
+                sb.append(" has the optimistically unchoked neighbor ").append(otherPeerId).append('.');
+                break;
+            case UNCHOKED:
+                sb.append(" is unchoked by ").append(otherPeerId).append('.');
+                break;
+            case CHOKED:
+                sb.append(" is choked by ").append(otherPeerId).append('.');
+                break;
+            case RECEIVED_HAVE:
+                sb.append(" received the 'have' message from ").append(otherPeerId)
+                  .append(" for the piece ").append(pieceIndex).append('.');
+                break;
+            case RECEIVED_INTERESTED:
+                sb.append(" received the 'interested' message from ").append(otherPeerId).append('.');
+                break;
+            case RECEIVED_NOT_INTERESTED:
+                sb.append(" received the 'not interested' message from ").append(otherPeerId).append('.');
+                break;
+            case DOWNLOADED_PIECE:
+                sb.append(" has downloaded the piece ").append(pieceIndex).append(" from ").append(otherPeerId)
+                  .append(". Now the number of pieces it has is ").append(count).append('.');
+                break;
+            case DOWNLOAD_COMPLETE:
+                sb.append(" has downloaded the complete file.");
+                break;
+        }
+        sb.append(System.lineSeparator());
+    }
+
+    /**
+     * Timestamps only change once a second, so the formatted text is reused within a second
+     */
+    private String formatTime(long timeMillis) {
+        long second = Math.floorDiv(timeMillis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = TIME_FORMAT.format(Instant.ofEpochMilli(timeMillis));
+        }
+        return cachedTime;
+    }
+
+    /**
+     * A slot in the ring buffer; fields are written by one producer before sequence is published
+     */
+    private static final class Event {
+        volatile long sequence;
+        byte type;
+        long timeNanos; // System.nanoTime()
+        int otherPeerId;
+        int pieceIndex;
+        int count;
+        int[] peers;
+    }
+}
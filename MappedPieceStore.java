@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Piece store that maps the whole file into memory. The file is mapped in
+ * fixed-size chunks because a single MappedByteBuffer is limited to 2 GB.
+ * Reads and writes use absolute indexes, so any number of threads can
+ * access different pieces at once without locking or system calls.
+ */
+public class MappedPieceStore implements PieceStore {
+    private static final int CHUNK_SIZE = 1 << 30; // 1 GB
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer[] chunks;
+    private AtomicBoolean[] dirty;
+
+    public MappedPieceStore(String filePath, long fileSize) throws IOException {
+        this.file = new RandomAccessFile(filePath, "rw");
+        this.channel = file.getChannel();
+
+        int numberOfChunks = (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        this.chunks = new MappedByteBuffer[numberOfChunks];
+        this.dirty = new AtomicBoolean[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            long start = (long) i * CHUNK_SIZE;
+            long size = Math.min(CHUNK_SIZE, fileSize - start);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            dirty[i] = new AtomicBoolean(false);
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int chunk = chunkIndex(position);
+            int index = (int) (position % CHUNK_SIZE);
+            int count = Math.min(length, chunks[chunk].capacity() - index);
+            chunks[chunk].get(index, buffer, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int chunk = chunkIndex(position);
+            int index = (int) (position % CHUNK_SIZE);
+            int count = Math.min(length, chunks[chunk].capacity() - index);
+            chunks[chunk].put(index, data, offset, count);
+            dirty[chunk].set(true);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        int chunk = chunkIndex(position);
+        int index = (int) (position % CHUNK_SIZE);
+        int length = (int) Math.min(count, chunks[chunk].capacity() - index);
+        ByteBuffer region = chunks[chunk].slice(index, length);
+        return target.write(region);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (int i = 0; i < chunks.length; i++) {
+            if (dirty[i].compareAndSet(true, false)) {
+                chunks[i].force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        // Mappings are released when the buffers are garbage collected
+        chunks = null;
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private int chunkIndex(long position) throws IOException {
+        int chunk = (int) (position / CHUNK_SIZE);
+        if (position < 0 || chunk >= chunks.length) {
+            throw new IOException("Position out of range: " + position);
+        }
+        return chunk;
+    }
+}
@@ -1,7 +1,6 @@
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.BitSet;
 
 /**
  * Message types and utilities for P2P protocol
@@ -16,6 +15,12 @@ public class Message {
     public static final byte BITFIELD = 5;
     public static final byte REQUEST = 6;
     public static final byte PIECE = 7;
+    public static final byte CANCEL = 8;
+    // Extension messages, only sent to peers that agreed to them in the handshake
+    public static final byte HAVE_BATCH = 9;
+    public static final byte HAVE_ALL = 10;
+
+    public static final int MAX_HAVE_BATCH = 1024; // Pieces in one HAVE_BATCH
 
     private byte messageType;
     private byte[] payload;
@@ -92,6 +97,13 @@ public class Message {
      * Create handshake message
      */
     public static byte[] createHandshake(int peerId) {
+        return createHandshake(peerId, 0);
+    }
+
+    /**
+     * Create handshake message offering protocol extensions in the reserved bytes
+     */
+    public static byte[] createHandshake(int peerId, int extensions) {
         ByteBuffer buffer = ByteBuffer.allocate(32);
         buffer.order(ByteOrder.BIG_ENDIAN);
         
@@ -99,8 +111,9 @@ public class Message {
         String header = "P2PFILESHARINGPROJ";
         buffer.put(header.getBytes());
         
-        // 10-byte zero bits
-        buffer.put(new byte[10]);
+        // 10 reserved bytes: zero, except the extension bits in the last four
+        buffer.put(new byte[6]);
+        buffer.putInt(extensions);
         
         // 4-byte peer ID
         buffer.putInt(peerId);
@@ -129,17 +142,37 @@ public class Message {
     }
 
     /**
-     * Create bitfield message from BitSet
+     * Extensions offered in a handshake; zero from peers without extensions
      */
-    public static Message createBitfieldMessage(BitSet bitfield, int numberOfPieces) {
+    public static int parseHandshakeExtensions(byte[] handshake) {
+        ByteBuffer buffer = ByteBuffer.wrap(handshake, 24, 4);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer.getInt();
+    }
+
+    /**
+     * Create bitfield message.
+     *
+     * The wire format puts piece 0 in the high bit of the first byte. Reversing a
+     * 64-bit word (piece 0 in the low bit) and writing it big-endian gives exactly
+     * that order for eight bytes at once.
+     */
+    public static Message createBitfieldMessage(AtomicBitfield bitfield, int numberOfPieces) {
         int bitfieldLength = (numberOfPieces + 7) / 8; // Round up to nearest byte
         byte[] bitfieldBytes = new byte[bitfieldLength];
+        ByteBuffer buffer = ByteBuffer.wrap(bitfieldBytes);
+        buffer.order(ByteOrder.BIG_ENDIAN);
         
-        for (int i = 0; i < numberOfPieces; i++) {
-            if (bitfield.get(i)) {
-                int byteIndex = i / 8;
-                int bitIndex = 7 - (i % 8); // High bit to low bit
-                bitfieldBytes[byteIndex] |= (1 << bitIndex);
+        int fullWords = bitfieldLength / 8;
+        for (int i = 0; i < fullWords; i++) {
+            buffer.putLong(Long.reverse(bitfield.getWord(i)));
+        }
+        if (fullWords < bitfield.getWordCount()) {
+            // Remaining 1-7 bytes of the last word, most significant first
+            long last = Long.reverse(bitfield.getWord(fullWords));
+            for (int b = fullWords * 8; b < bitfieldLength; b++) {
+                bitfieldBytes[b] = (byte) (last >>> 56);
+                last <<= 8;
             }
         }
         
@@ -147,22 +180,28 @@ public class Message {
     }
 
     /**
-     * Parse bitfield message to BitSet
+     * Parse bitfield message a word at a time; see createBitfieldMessage for the bit order.
+     * Missing trailing bytes count as zero and spare bits past numberOfPieces are ignored.
      */
-    public static BitSet parseBitfieldMessage(byte[] payload, int numberOfPieces) {
-        BitSet bitfield = new BitSet(numberOfPieces);
+    public static AtomicBitfield parseBitfieldMessage(byte[] payload, int numberOfPieces) {
+        long[] words = new long[(numberOfPieces + 63) >>> 6];
+        int length = Math.min(payload.length, (numberOfPieces + 7) / 8);
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+        buffer.order(ByteOrder.BIG_ENDIAN);
         
-        for (int i = 0; i < numberOfPieces; i++) {
-            int byteIndex = i / 8;
-            if (byteIndex < payload.length) {
-                int bitIndex = 7 - (i % 8); // High bit to low bit
-                if ((payload[byteIndex] & (1 << bitIndex)) != 0) {
-                    bitfield.set(i);
-                }
+        int fullWords = length / 8;
+        for (int i = 0; i < fullWords; i++) {
+            words[i] = Long.reverse(buffer.getLong());
+        }
+        if (fullWords < words.length) {
+            long last = 0;
+            for (int b = fullWords * 8, shift = 56; b < length; b++, shift -= 8) {
+                last |= (payload[b] & 0xFFL) << shift;
             }
+            words[fullWords] = Long.reverse(last);
         }
         
-        return bitfield;
+        return new AtomicBitfield(numberOfPieces, words);
     }
 
     /**
@@ -184,6 +223,38 @@ public class Message {
         return buffer.getInt();
     }
 
+    /**
+     * Create a HAVE_BATCH message announcing count pieces, starting at indices[from]
+     */
+    public static Message createHaveBatchMessage(int[] indices, int from, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * count);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int i = from; i < from + count; i++) {
+            buffer.putInt(indices[i]);
+        }
+        return new Message(HAVE_BATCH, buffer.array());
+    }
+
+    /**
+     * Parse HAVE_BATCH message: one big-endian piece index per four bytes
+     */
+    public static int[] parseHaveBatchMessage(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int[] indices = new int[payload.length / 4];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = buffer.getInt();
+        }
+        return indices;
+    }
+
+    /**
+     * Create HAVE_ALL message, sent by a seed in place of a full bitfield
+     */
+    public static Message createHaveAllMessage() {
+        return new Message(HAVE_ALL, null);
+    }
+
     /**
      * Create request message
      */
@@ -214,6 +285,107 @@ public class Message {
         return new Message(PIECE, buffer.array());
     }
 
+    /**
+     * Create cancel message for a whole-piece request
+     */
+    public static Message createCancelMessage(int pieceIndex) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(pieceIndex);
+        return new Message(CANCEL, buffer.array());
+    }
+
+    /**
+     * Create cancel message for a block request
+     */
+    public static Message createBlockCancelMessage(int pieceIndex, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(offset);
+        buffer.putInt(length);
+        return new Message(CANCEL, buffer.array());
+    }
+
+    /**
+     * Create block request message: piece index, offset within the piece and length
+     */
+    public static Message createBlockRequestMessage(int pieceIndex, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(offset);
+        buffer.putInt(length);
+        return new Message(REQUEST, buffer.array());
+    }
+
+    /**
+     * Check if a request payload carries a block (index, offset, length) rather than a whole piece
+     */
+    public static boolean isBlockRequest(byte[] payload) {
+        return payload.length == 12;
+    }
+
+    /**
+     * Parse block request message
+     */
+    public static BlockRequest parseBlockRequestMessage(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return new BlockRequest(buffer.getInt(), buffer.getInt(), buffer.getInt());
+    }
+
+    /**
+     * Create just the length, type and index of a piece message, for senders that
+     * stream the piece bytes separately
+     */
+    public static byte[] createPieceHeader(int pieceIndex, int pieceLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(1 + 4 + pieceLength);
+        buffer.put(PIECE);
+        buffer.putInt(pieceIndex);
+        return buffer.array();
+    }
+
+    /**
+     * Create just the length, type, index and offset of a block piece message
+     */
+    public static byte[] createBlockPieceHeader(int pieceIndex, int offset, int blockLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(13);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(1 + 8 + blockLength);
+        buffer.put(PIECE);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(offset);
+        return buffer.array();
+    }
+
+    /**
+     * Create block piece message: piece index, offset within the piece and the block bytes
+     */
+    public static Message createBlockPieceMessage(int pieceIndex, int offset, byte[] blockData) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + blockData.length);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(offset);
+        buffer.put(blockData);
+        return new Message(PIECE, buffer.array());
+    }
+
+    /**
+     * Parse block piece message
+     */
+    public static PieceData parseBlockPieceMessage(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int pieceIndex = buffer.getInt();
+        int offset = buffer.getInt();
+        byte[] blockData = new byte[payload.length - 8];
+        buffer.get(blockData);
+        return new PieceData(pieceIndex, offset, blockData);
+    }
+
     /**
      * Parse piece message
      */
@@ -231,15 +403,41 @@ public class Message {
      */
     public static class PieceData {
         private int pieceIndex;
+        private int offset;
         private byte[] data;
 
         public PieceData(int pieceIndex, byte[] data) {
+            this(pieceIndex, 0, data);
+        }
+
+        public PieceData(int pieceIndex, int offset, byte[] data) {
             this.pieceIndex = pieceIndex;
+            this.offset = offset;
             this.data = data;
         }
 
         public int getPieceIndex() { return pieceIndex; }
+        public int getOffset() { return offset; }
         public byte[] getData() { return data; }
     }
+
+    /**
+     * Helper class for block request fields
+     */
+    public static class BlockRequest {
+        private int pieceIndex;
+        private int offset;
+        private int length;
+
+        public BlockRequest(int pieceIndex, int offset, int length) {
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getPieceIndex() { return pieceIndex; }
+        public int getOffset() { return offset; }
+        public int getLength() { return length; }
+    }
 }
 
@@ -0,0 +1,164 @@
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of named counters, gauges, meters and latency histograms.
+ *
+ * Metrics are created on first lookup and then held by the code that updates
+ * them, so the hot path never touches the registry maps. Counters and meters
+ * are LongAdders, gauges are read on demand, and histograms are lock-free.
+ * snapshot() copies everything for reporting; writeTo() appends it to a file.
+ */
+public class Metrics {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Map<String, LongAdder> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, Meter> meters;
+    private final Map<String, LatencyHistogram> histograms;
+
+    public Metrics() {
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        this.meters = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Register a value that is read whenever a snapshot is taken; replaces an earlier gauge of the same name
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public Meter meter(String name) {
+        return meters.computeIfAbsent(name, k -> new Meter());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        Map<String, Long> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, gauge) -> {
+            try {
+                gaugeValues.put(name, gauge.getAsLong());
+            } catch (RuntimeException e) {
+                // A gauge over a component that is shutting down; leave it out
+            }
+        });
+        Map<String, double[]> meterValues = new TreeMap<>();
+        meters.forEach((name, meter) -> meterValues.put(name, new double[] {meter.getCount(), meter.getRate()}));
+        Map<String, LatencyHistogram.Snapshot> histogramValues = new TreeMap<>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+        return new Snapshot(System.currentTimeMillis(), counterValues, gaugeValues, meterValues, histogramValues);
+    }
+
+    /**
+     * Append a snapshot to a file as one line per metric
+     */
+    public void writeTo(String path) throws IOException {
+        Snapshot snapshot = snapshot();
+        String time = LocalDateTime.now().format(TIME_FORMAT);
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(path, true)))) {
+            out.println("# " + time);
+            snapshot.getCounters().forEach((name, value) -> out.println("counter " + name + " " + value));
+            snapshot.getGauges().forEach((name, value) -> out.println("gauge " + name + " " + value));
+            snapshot.getMeters().forEach((name, value) ->
+                    out.printf("meter %s count=%d rate=%.2f/s%n", name, (long) value[0], value[1]));
+            snapshot.getHistograms().forEach((name, h) ->
+                    out.printf("histogram %s count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d%n", name,
+                               h.getCount(), h.getMean(), h.getPercentile(0.5), h.getPercentile(0.9),
+                               h.getPercentile(0.99), h.getMax()));
+        }
+    }
+
+    /**
+     * Counter that also reports its rate over the last few seconds
+     */
+    public static class Meter {
+        private static final int WINDOW_SECONDS = 10;
+        private static final int SLOTS = 16; // More than the window so the current second is never read
+
+        private final LongAdder count;
+        private final AtomicLongArray slotSecond;
+        private final AtomicLongArray slotCount;
+
+        Meter() {
+            this.count = new LongAdder();
+            this.slotSecond = new AtomicLongArray(SLOTS);
+            this.slotCount = new AtomicLongArray(SLOTS);
+        }
+
+        public void mark(long n) {
+            count.add(n);
+            long second = System.nanoTime() / 1_000_000_000L;
+            int slot = (int) (second % SLOTS);
+            long stamp = slotSecond.get(slot);
+            if (stamp != second && slotSecond.compareAndSet(slot, stamp, second)) {
+                // First mark in a new second resets the slot; a racing mark may land before the reset
+                slotCount.set(slot, 0);
+            }
+            slotCount.addAndGet(slot, n);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Events per second over the last complete WINDOW_SECONDS seconds
+         */
+        public double getRate() {
+            long now = System.nanoTime() / 1_000_000_000L;
+            long total = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                long age = now - slotSecond.get(i);
+                if (age >= 1 && age <= WINDOW_SECONDS) {
+                    total += slotCount.get(i);
+                }
+            }
+            return (double) total / WINDOW_SECONDS;
+        }
+    }
+
+    /**
+     * Point-in-time copy of every metric, sorted by name
+     */
+    public static class Snapshot {
+        private final long timeMillis;
+        private final Map<String, Long> counters;
+        private final Map<String, Long> gauges;
+        private final Map<String, double[]> meters; // {count, rate per second}
+        private final Map<String, LatencyHistogram.Snapshot> histograms;
+
+        Snapshot(long timeMillis, Map<String, Long> counters, Map<String, Long> gauges,
+                 Map<String, double[]> meters, Map<String, LatencyHistogram.Snapshot> histograms) {
+            this.timeMillis = timeMillis;
+            this.counters = counters;
+            this.gauges = gauges;
+            this.meters = meters;
+            this.histograms = histograms;
+        }
+
+        public long getTimeMillis() { return timeMillis; }
+        public Map<String, Long> getCounters() { return counters; }
+        public Map<String, Long> getGauges() { return gauges; }
+        public Map<String, double[]> getMeters() { return meters; }
+        public Map<String, LatencyHistogram.Snapshot> getHistograms() { return histograms; }
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * What the choking decisions need to know about a connection. PeerConnection
+ * implements it for the running peer and SwarmSimulator for simulated links,
+ * so both use the same selection code in peerProcess.
+ */
+public interface Neighbor {
+    int getPeerId();
+
+    /**
+     * Bytes downloaded from this neighbor in the current unchoking interval
+     */
+    long getDownloadRate();
+
+    /**
+     * Whether the neighbor is interested in pieces we have
+     */
+    boolean peerIsInterested();
+
+    /**
+     * Whether we are choking the neighbor
+     */
+    boolean peerIsChoked();
+}
@@ -0,0 +1,347 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking socket state for a single peer driven by an NioTransport I/O thread.
+ * Handles the handshake, message framing and a queue of pending writes.
+ */
+public class NioChannel {
+    private static final int HANDSHAKE_LENGTH = 32;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final NioTransport transport;
+    private final NioTransport.IoLoop loop;
+    private final SocketChannel channel;
+    private final int expectedPeerId; // -1 for incoming connections
+    private final Queue<Outbound> writeQueue;
+    private final AtomicInteger pendingWrites; // Size of writeQueue, which cannot count itself cheaply
+    private volatile SendBudget<Outbound> pieceBudget; // Limits piece data in writeQueue once set
+    private final AtomicBoolean writeScheduled;
+    private final AtomicBoolean closed;
+    private ByteBuffer readBuffer;
+    private SelectionKey key;
+    private boolean handshakeDone;
+    private boolean readPaused; // Only touched on the I/O thread
+    private int peerExtensions; // Offered in the peer's handshake
+    private PeerConnection connection;
+
+    NioChannel(NioTransport transport, NioTransport.IoLoop loop, SocketChannel channel, int expectedPeerId) {
+        this.transport = transport;
+        this.loop = loop;
+        this.channel = channel;
+        this.expectedPeerId = expectedPeerId;
+        this.writeQueue = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new AtomicInteger(0);
+        this.writeScheduled = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.readBuffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public boolean isIncoming() {
+        return expectedPeerId == -1;
+    }
+
+    public int getPeerExtensions() {
+        return peerExtensions;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Messages queued and not yet fully written
+     */
+    public int getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    /**
+     * Queue bytes for sending; safe to call from any thread
+     */
+    public void send(byte[] data) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection closed");
+        }
+        writeQueue.add(new Outbound(ByteBuffer.wrap(data)));
+        pendingWrites.incrementAndGet();
+        scheduleWrite();
+    }
+
+    /**
+     * Limit the piece data in the write queue; pieces past the limit wait in the budget
+     */
+    public void limitQueuedPieceBytes(int maxBytes) {
+        pieceBudget = new SendBudget<>(maxBytes, entry -> entry.length, this::enqueue);
+    }
+
+    /**
+     * Queue a header followed by a region of the shared file, sent with transferTo.
+     * Returns false if the piece was dropped because too many are waiting for the budget.
+     */
+    public boolean sendFile(byte[] header, FileManager fileManager, long position, int count) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection closed");
+        }
+        // Added as one entry so no other message can land between header and body
+        Outbound entry = new Outbound(ByteBuffer.wrap(header), fileManager, position, count);
+        SendBudget<Outbound> budget = pieceBudget;
+        if (budget == null) {
+            enqueue(entry);
+        } else if (!budget.offer(entry)) {
+            return false;
+        }
+        scheduleWrite();
+        return true;
+    }
+
+    private void enqueue(Outbound entry) {
+        writeQueue.add(entry);
+        pendingWrites.incrementAndGet();
+    }
+
+    /**
+     * Bytes of piece data in the write queue
+     */
+    public int getQueuedPieceBytes() {
+        SendBudget<Outbound> budget = pieceBudget;
+        return budget == null ? 0 : budget.getQueuedBytes();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Finish an outgoing connect and start the handshake
+     */
+    void onConnectable() throws IOException {
+        if (channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            send(Message.createHandshake(transport.getMyPeerId(), transport.getExtensions()));
+        }
+    }
+
+    /**
+     * Read whatever is available and dispatch every complete frame
+     */
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            throw new IOException("Connection closed");
+        }
+        dispatch();
+    }
+
+    private void dispatch() throws IOException {
+        readBuffer.flip();
+        try {
+            if (!handshakeDone && !readHandshake()) {
+                return;
+            }
+            while (!closed.get() && !readPaused && readMessage()) {
+                // Keep dispatching complete messages
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Stop reading from the peer; frames already buffered wait too. Called on
+     * the I/O thread while a message is being handled, to push back on the
+     * peer without blocking the loop.
+     */
+    public void pauseReading() {
+        readPaused = true;
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Start reading again after pauseReading; safe to call from any thread
+     */
+    public void resumeReading() {
+        loop.execute(() -> {
+            if (!readPaused || closed.get()) {
+                return;
+            }
+            readPaused = false;
+            try {
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                // Frames that arrived before the pause are not signalled again by the selector
+                dispatch();
+            } catch (IOException | CancelledKeyException e) {
+                close(e instanceof IOException ? (IOException) e : new IOException("Connection closed"));
+            }
+        });
+    }
+
+    private boolean readHandshake() throws IOException {
+        if (readBuffer.remaining() < HANDSHAKE_LENGTH) {
+            return false;
+        }
+        byte[] handshake = new byte[HANDSHAKE_LENGTH];
+        readBuffer.get(handshake);
+        int remotePeerId = Message.parseHandshake(handshake);
+        peerExtensions = Message.parseHandshakeExtensions(handshake);
+
+        if (!isIncoming() && remotePeerId != expectedPeerId) {
+            throw new IOException("Peer ID mismatch: expected " + expectedPeerId + ", got " + remotePeerId);
+        }
+        if (isIncoming()) {
+            send(Message.createHandshake(transport.getMyPeerId(), transport.getExtensions()));
+        }
+
+        handshakeDone = true;
+        connection = transport.getListener().connectionEstablished(this, remotePeerId);
+        if (connection == null) {
+            throw new IOException("Connection rejected for peer " + remotePeerId);
+        }
+        return true;
+    }
+
+    private boolean readMessage() throws IOException {
+        if (readBuffer.remaining() < 4) {
+            return false;
+        }
+
+        int messageLength = readBuffer.getInt(readBuffer.position());
+        if (messageLength < 1 || messageLength > transport.getMaxMessageLength()) {
+            throw new IOException("Invalid message length: " + messageLength);
+        }
+
+        if (readBuffer.remaining() < 4 + messageLength) {
+            if (readBuffer.capacity() < 4 + messageLength) {
+                // Grow so the whole frame fits after compaction
+                ByteBuffer larger = ByteBuffer.allocate(4 + messageLength);
+                larger.order(ByteOrder.BIG_ENDIAN);
+                larger.put(readBuffer);
+                larger.flip();
+                readBuffer = larger;
+            }
+            return false;
+        }
+
+        readBuffer.getInt();
+        byte messageType = readBuffer.get();
+        byte[] payload = new byte[messageLength - 1];
+        readBuffer.get(payload);
+
+        transport.getListener().messageReceived(connection, new Message(messageType, payload));
+        return true;
+    }
+
+    /**
+     * Write queued buffers until the socket would block
+     */
+    void onWritable() throws IOException {
+        Outbound head;
+        while ((head = writeQueue.peek()) != null) {
+            if (!head.writeTo(channel)) {
+                return;
+            }
+            writeQueue.poll();
+            pendingWrites.decrementAndGet();
+            if (head.fileManager != null && pieceBudget != null) {
+                // May admit waiting pieces, which this loop then writes too
+                pieceBudget.release(head);
+            }
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeScheduled.set(false);
+        if (!writeQueue.isEmpty()) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * A pending write: a buffer, optionally followed by a file region
+     */
+    private static class Outbound {
+        private final ByteBuffer buffer;
+        private final FileManager fileManager;
+        private final int length; // Bytes of the file region
+        private long position;
+        private long remaining;
+
+        Outbound(ByteBuffer buffer) {
+            this(buffer, null, 0, 0);
+        }
+
+        Outbound(ByteBuffer buffer, FileManager fileManager, long position, int count) {
+            this.buffer = buffer;
+            this.fileManager = fileManager;
+            this.length = count;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        /**
+         * Write as much as the socket accepts; returns true once fully written
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            if (buffer.hasRemaining()) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (remaining > 0) {
+                long written = fileManager.transferTo(position, remaining, channel);
+                if (written <= 0) {
+                    return false;
+                }
+                position += written;
+                remaining -= written;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Close the channel and report the connection loss once
+     */
+    public void close(IOException cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (pieceBudget != null) {
+            pieceBudget.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closing
+        }
+        if (connection != null) {
+            transport.getListener().connectionClosed(connection, cause);
+        } else if (cause != null && !isIncoming()) {
+            System.err.println("Could not connect to peer " + expectedPeerId + ": " + cause.getMessage());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-loop transport that drives every peer connection from a small fixed
+ * set of selector threads instead of one blocking reader thread per connection
+ */
+public class NioTransport {
+    /**
+     * Callbacks from the I/O threads into the peer process
+     */
+    public interface Listener {
+        /** Called after a valid handshake; return null to reject the peer */
+        PeerConnection connectionEstablished(NioChannel channel, int remotePeerId) throws IOException;
+
+        void messageReceived(PeerConnection connection, Message message) throws IOException;
+
+        void connectionClosed(PeerConnection connection, IOException cause);
+    }
+
+    private final int myPeerId;
+    private final int extensions; // Offered in every handshake
+    private final int maxMessageLength;
+    private final Listener listener;
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioTransport(int myPeerId, int extensions, int ioThreads, int maxMessageLength, Listener listener)
+            throws IOException {
+        this.myPeerId = myPeerId;
+        this.extensions = extensions;
+        this.maxMessageLength = maxMessageLength;
+        this.listener = listener;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        this.nextLoop = new AtomicInteger(0);
+        this.running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop("nio-io-" + i);
+        }
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Start accepting incoming connections on the given port
+     */
+    public void bind(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        IoLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> {
+            try {
+                serverChannel.register(acceptLoop.selector, SelectionKey.OP_ACCEPT, serverChannel);
+            } catch (ClosedChannelException e) {
+                System.err.println("Error registering server channel: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Start an outgoing connection; the handshake completes asynchronously
+     */
+    public void connect(String hostName, int port, int expectedPeerId) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.connect(new InetSocketAddress(hostName, port));
+        register(channel, expectedPeerId, SelectionKey.OP_CONNECT);
+    }
+
+    private void register(SocketChannel channel, int expectedPeerId, int ops) {
+        IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        NioChannel nioChannel = new NioChannel(this, loop, channel, expectedPeerId);
+        loop.execute(() -> {
+            try {
+                nioChannel.setKey(channel.register(loop.selector, ops, nioChannel));
+            } catch (ClosedChannelException e) {
+                nioChannel.close(e);
+            }
+        });
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            register(channel, -1, SelectionKey.OP_READ);
+        }
+    }
+
+    int getMyPeerId() { return myPeerId; }
+    int getExtensions() { return extensions; }
+    int getMaxMessageLength() { return maxMessageLength; }
+    Listener getListener() { return listener; }
+
+    /**
+     * Stop all I/O threads and close the listening socket
+     */
+    public void close() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * A single selector thread
+     */
+    class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final Thread thread;
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.thread = new Thread(this, name);
+        }
+
+        /**
+         * Run a task on this loop's thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Selector error: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioChannel) {
+                    ((NioChannel) key.attachment()).close(null);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Shutting down
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            if (key.attachment() == serverChannel) {
+                try {
+                    accept();
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("Error accepting connection: " + e.getMessage());
+                    }
+                }
+                return;
+            }
+
+            NioChannel channel = (NioChannel) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    channel.onConnectable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    channel.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    channel.onWritable();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                channel.close(e instanceof IOException ? (IOException) e : new IOException("Connection closed"));
+            }
+        }
+    }
+}
@@ -1,28 +1,47 @@
 import java.io.*;
 import java.net.*;
-import java.util.BitSet;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages a connection to a single peer
  */
-public class PeerConnection {
+public class PeerConnection implements Neighbor {
     private int peerId;
     private Socket socket;
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
+    private NioChannel channel; // Set when driven by NioTransport instead of streams
+    private ConnectionWriter writer; // Queue and writer task for the stream, once started
     private AtomicBoolean isChoked;
     private AtomicBoolean isInterested;
     private AtomicBoolean peerIsChoked;
     private AtomicBoolean peerIsInterested;
-    private BitSet peerBitfield;
+    private AtomicBitfield peerBitfield;
+    private AtomicBitfield interestingPieces; // Peer has, we lack; guarded by itself
+    private AtomicBitfield pendingHaves; // Stored pieces not yet announced to this peer
+    private AtomicBoolean havesPending;
     private int numberOfPieces;
     private AtomicLong downloadRate; // Bytes downloaded in current interval
+    private LongAdder bytesIn;  // Piece data received from this peer, never reset
+    private LongAdder bytesOut; // Piece data sent to this peer, never reset
+    private RequestQueue requestQueue; // Requests we have in flight to this peer
+    private final Lock requestLock = new ReentrantLock(); // Held while filling or clearing requestQueue
+    private final Lock writeLock = new ReentrantLock(); // Keeps whole messages together on the stream
+    private boolean blockMode; // REQUEST/PIECE carry (index, offset, length) blocks
+    private int peerExtensions; // Offered in the peer's handshake
+    private int extensions;     // Agreed for this connection, see Extensions
     private long lastRateResetTime;
     private Logger logger;
     private FileManager fileManager;
     private int myPeerId;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public PeerConnection(int myPeerId, int peerId, Socket socket, int numberOfPieces, Logger logger, FileManager fileManager) throws IOException {
         this(myPeerId, peerId, socket, new DataInputStream(socket.getInputStream()), 
@@ -45,16 +64,34 @@ public class PeerConnection {
         this.isInterested = new AtomicBoolean(false);
         this.peerIsChoked = new AtomicBoolean(true);
         this.peerIsInterested = new AtomicBoolean(false);
-        this.peerBitfield = new BitSet(numberOfPieces);
+        this.peerBitfield = new AtomicBitfield(numberOfPieces);
+        this.interestingPieces = new AtomicBitfield(numberOfPieces);
+        this.pendingHaves = new AtomicBitfield(numberOfPieces);
+        this.havesPending = new AtomicBoolean(false);
         this.downloadRate = new AtomicLong(0);
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
         this.lastRateResetTime = System.currentTimeMillis();
+        this.requestQueue = new RequestQueue(1, 1);
+    }
+
+    public PeerConnection(int myPeerId, int peerId, NioChannel channel, int numberOfPieces, Logger logger, FileManager fileManager) throws IOException {
+        this(myPeerId, peerId, null, null, null, numberOfPieces, logger, fileManager);
+        this.channel = channel;
     }
 
     /**
      * Send handshake message
      */
     public void sendHandshake(int peerId) throws IOException {
-        byte[] handshake = Message.createHandshake(peerId);
+        sendHandshake(peerId, 0);
+    }
+
+    /**
+     * Send handshake message offering protocol extensions
+     */
+    public void sendHandshake(int peerId, int extensions) throws IOException {
+        byte[] handshake = Message.createHandshake(peerId, extensions);
         outputStream.write(handshake);
         outputStream.flush();
     }
@@ -72,16 +109,51 @@ public class PeerConnection {
             }
             bytesRead += read;
         }
+        peerExtensions = Message.parseHandshakeExtensions(handshake);
         return Message.parseHandshake(handshake);
     }
 
+    /**
+     * Send everything after the handshake through a queue drained by one writer task.
+     * NioTransport connections already queue their writes; they only get the piece budget.
+     */
+    public void startWriter(Executor executor, int maxQueuedPieceBytes) {
+        if (channel != null) {
+            channel.limitQueuedPieceBytes(maxQueuedPieceBytes);
+            return;
+        }
+        if (writer != null) {
+            return;
+        }
+        writer = new ConnectionWriter(outputStream, socket.getChannel(), fileManager, maxQueuedPieceBytes,
+                                      bytes -> bytesOut.add(bytes));
+        writer.start(executor);
+    }
+
     /**
      * Send a message
      */
     public void sendMessage(Message message) throws IOException {
-        byte[] data = message.toByteArray();
-        outputStream.write(data);
-        outputStream.flush();
+        sendBytes(message.toByteArray());
+    }
+
+    private void sendBytes(byte[] data) throws IOException {
+        if (channel != null) {
+            channel.send(data);
+            return;
+        }
+        if (writer != null) {
+            writer.send(data);
+            return;
+        }
+        // Locks rather than monitors around socket I/O, so virtual threads do not pin their carriers
+        writeLock.lock();
+        try {
+            outputStream.write(data);
+            outputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /**
@@ -94,30 +166,56 @@ public class PeerConnection {
     /**
      * Send bitfield
      */
-    public void sendBitfield(BitSet bitfield) throws IOException {
+    public void sendBitfield(AtomicBitfield bitfield) throws IOException {
         Message bitfieldMsg = Message.createBitfieldMessage(bitfield, numberOfPieces);
         sendMessage(bitfieldMsg);
     }
 
     /**
-     * Receive bitfield
+     * Handle received bitfield message; returns the pieces the peer had not announced before
      */
-    public void receiveBitfield() throws IOException {
-        Message message = receiveMessage();
-        if (message.getMessageType() != Message.BITFIELD) {
-            throw new IOException("Expected bitfield message");
+    public AtomicBitfield handleBitfieldMessage(Message message) throws IOException {
+        return mergePeerBitfield(Message.parseBitfieldMessage(message.getPayload(), numberOfPieces).snapshot());
+    }
+
+    /**
+     * Handle received HAVE_ALL message: the peer has the whole file. Returns the pieces
+     * the peer had not announced before.
+     */
+    public AtomicBitfield handleHaveAllMessage() throws IOException {
+        AtomicBitfield all = new AtomicBitfield(numberOfPieces);
+        for (int i = 0; i < numberOfPieces; i++) {
+            all.set(i);
+        }
+        return mergePeerBitfield(all.snapshot());
+    }
+
+    private AtomicBitfield mergePeerBitfield(long[] words) throws IOException {
+        AtomicBitfield myBitfield = fileManager.getBitfield();
+        long[] added = new long[words.length];
+        synchronized (interestingPieces) {
+            // Only bits not already set are new; HAVEs before the bitfield were counted already
+            for (int i = 0; i < words.length && i < peerBitfield.getWordCount(); i++) {
+                added[i] = words[i] & ~peerBitfield.getWord(i);
+            }
+            // Merge into the existing bitfield so other threads never see it replaced
+            peerBitfield.or(words);
+            long[] interesting = new long[peerBitfield.getWordCount()];
+            for (int i = 0; i < interesting.length; i++) {
+                interesting[i] = peerBitfield.getWord(i) & ~myBitfield.getWord(i);
+            }
+            interestingPieces.or(interesting);
         }
-        peerBitfield = Message.parseBitfieldMessage(message.getPayload(), numberOfPieces);
         updateInterest();
+        return new AtomicBitfield(numberOfPieces, added);
     }
 
     /**
      * Send interested message
      */
     public void sendInterested() throws IOException {
-        if (!isInterested.get()) {
+        if (isInterested.compareAndSet(false, true)) {
             sendMessage(new Message(Message.INTERESTED, null));
-            isInterested.set(true);
         }
     }
 
@@ -125,9 +223,8 @@ public class PeerConnection {
      * Send not interested message
      */
     public void sendNotInterested() throws IOException {
-        if (isInterested.get()) {
+        if (isInterested.compareAndSet(true, false)) {
             sendMessage(new Message(Message.NOT_INTERESTED, null));
-            isInterested.set(false);
         }
     }
 
@@ -135,9 +232,12 @@ public class PeerConnection {
      * Send choke message
      */
     public void sendChoke() throws IOException {
-        if (!peerIsChoked.get()) {
+        if (peerIsChoked.compareAndSet(false, true)) {
+            // A choked peer drops its requests, so pieces still queued for it would be wasted
+            if (writer != null) {
+                writer.cancelPieces();
+            }
             sendMessage(new Message(Message.CHOKE, null));
-            peerIsChoked.set(true);
         }
     }
 
@@ -145,9 +245,9 @@ public class PeerConnection {
      * Send unchoke message
      */
     public void sendUnchoke() throws IOException {
-        if (peerIsChoked.get()) {
+        // Update state first: the peer may answer with a request before sendMessage returns
+        if (peerIsChoked.compareAndSet(true, false)) {
             sendMessage(new Message(Message.UNCHOKE, null));
-            peerIsChoked.set(false);
             logger.logUnchoked(peerId);
         }
     }
@@ -160,6 +260,58 @@ public class PeerConnection {
         sendMessage(haveMsg);
     }
 
+    /**
+     * Hold a HAVE until the next flushHaves, so announcements go out in batches
+     */
+    public void queueHave(int pieceIndex) {
+        pendingHaves.set(pieceIndex);
+        havesPending.set(true);
+    }
+
+    /**
+     * Send every queued HAVE as one write; returns how many were sent
+     */
+    public int flushHaves() throws IOException {
+        if (!havesPending.getAndSet(false)) {
+            return 0;
+        }
+        int[] pieces = new int[16];
+        int count = 0;
+        for (int i = pendingHaves.nextSetBit(0); i >= 0; i = pendingHaves.nextSetBit(i + 1)) {
+            // Whoever clears the bit sends it, so a HAVE queued during the flush is not lost or repeated
+            if (pendingHaves.clear(i)) {
+                if (count == pieces.length) {
+                    pieces = Arrays.copyOf(pieces, count * 2);
+                }
+                pieces[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        if (supports(Extensions.HAVE_BATCH)) {
+            for (int from = 0; from < count; from += Message.MAX_HAVE_BATCH) {
+                batch.write(Message.createHaveBatchMessage(pieces, from, Math.min(Message.MAX_HAVE_BATCH, count - from))
+                                   .toByteArray());
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                batch.write(Message.createHaveMessage(pieces[i]).toByteArray());
+            }
+        }
+        sendBytes(batch.toByteArray());
+        return count;
+    }
+
+    /**
+     * Announce the whole file in place of a bitfield, to peers that agreed to HAVE_ALL
+     */
+    public void sendHaveAll() throws IOException {
+        sendMessage(Message.createHaveAllMessage());
+    }
+
     /**
      * Send request message
      */
@@ -168,6 +320,32 @@ public class PeerConnection {
         sendMessage(requestMsg);
     }
 
+    /**
+     * Send request for a block, or for the whole piece when not in block mode
+     */
+    public void sendRequest(int pieceIndex, int offset, int length) throws IOException {
+        if (!blockMode) {
+            sendRequest(pieceIndex);
+            return;
+        }
+        sendMessage(Message.createBlockRequestMessage(pieceIndex, offset, length));
+    }
+
+    /**
+     * Cancel an earlier request for a block, or for the whole piece when not in block mode
+     */
+    public void sendCancel(int pieceIndex, int offset, int length) throws IOException {
+        if (!supports(Extensions.CANCEL)) {
+            // Not part of the base protocol; the late piece is simply ignored when it arrives
+            return;
+        }
+        if (!blockMode) {
+            sendMessage(Message.createCancelMessage(pieceIndex));
+            return;
+        }
+        sendMessage(Message.createBlockCancelMessage(pieceIndex, offset, length));
+    }
+
     /**
      * Send piece message
      */
@@ -178,57 +356,149 @@ public class PeerConnection {
     }
 
     /**
-     * Update interest based on peer's bitfield
+     * Send piece message straight from the file to the socket with transferTo.
+     * Falls back to a heap copy for sockets without a channel.
      */
-    public void updateInterest() throws IOException {
-        BitSet myBitfield = fileManager.getBitfield();
-        boolean hasInterestingPieces = false;
+    public void sendPiece(int pieceIndex) throws IOException {
+        if (!fileManager.hasPiece(pieceIndex)) {
+            throw new IOException("Piece " + pieceIndex + " not available");
+        }
         
-        for (int i = 0; i < numberOfPieces; i++) {
-            if (peerBitfield.get(i) && !myBitfield.get(i)) {
-                hasInterestingPieces = true;
-                break;
-            }
+        int pieceLength = fileManager.getActualPieceSize(pieceIndex);
+        sendPieceRegion(Message.createPieceHeader(pieceIndex, pieceLength), pieceIndex, 0, pieceLength);
+    }
+
+    /**
+     * Send one block of a piece straight from the file to the socket
+     */
+    public void sendBlock(int pieceIndex, int offset, int length) throws IOException {
+        if (!fileManager.hasPiece(pieceIndex)) {
+            throw new IOException("Piece " + pieceIndex + " not available");
+        }
+        if (offset < 0 || length <= 0 || offset + length > fileManager.getActualPieceSize(pieceIndex)) {
+            throw new IOException("Invalid block " + offset + "+" + length + " of piece " + pieceIndex);
         }
         
-        if (hasInterestingPieces) {
-            sendInterested();
-        } else {
-            sendNotInterested();
+        sendPieceRegion(Message.createBlockPieceHeader(pieceIndex, offset, length), pieceIndex, offset, length);
+    }
+
+    /**
+     * Send a piece message header followed by bytes of the piece from the file
+     */
+    private void sendPieceRegion(byte[] header, int pieceIndex, int offset, int length) throws IOException {
+        long position = fileManager.getPieceOffset(pieceIndex) + offset;
+        if (writer != null) {
+            // Queued so a CANCEL can still drop it; the writer counts the bytes once written.
+            // A request dropped for being too far over the budget is left to the peer's timeout.
+            writer.sendPiece(header, position, length, pieceIndex, offset);
+            return;
         }
+        if (!sendFileRegion(header, position, length)) {
+            sendBytes(withBody(header, pieceIndex, offset, length));
+        }
+        bytesOut.add(length);
     }
 
     /**
-     * Check if peer has interesting pieces
+     * A whole piece message read into memory, for sockets that cannot use transferTo
      */
-    public boolean hasInterestingPieces() {
-        BitSet myBitfield = fileManager.getBitfield();
-        for (int i = 0; i < numberOfPieces; i++) {
-            if (peerBitfield.get(i) && !myBitfield.get(i)) {
-                return true;
-            }
+    private byte[] withBody(byte[] header, int pieceIndex, int offset, int length) throws IOException {
+        byte[] message = Arrays.copyOf(header, header.length + length);
+        System.arraycopy(fileManager.readPiece(pieceIndex), offset, message, header.length, length);
+        return message;
+    }
+
+    /**
+     * Drop a piece message still waiting to be sent, after the peer cancelled its request.
+     * Returns false if it has already gone out or was never queued.
+     */
+    public boolean cancelQueuedPiece(int pieceIndex, int offset) {
+        return writer != null && writer.cancel(pieceIndex, offset);
+    }
+
+    /**
+     * Bytes of piece data queued for this peer but not yet written
+     */
+    public int getQueuedPieceBytes() {
+        if (channel != null) {
+            return channel.getQueuedPieceBytes();
         }
-        return false;
+        return writer == null ? 0 : writer.getQueuedPieceBytes();
     }
 
     /**
-     * Get a random piece that peer has but we don't
+     * Messages queued for this peer and not yet written, on either transport
      */
-    public int getRandomInterestingPiece() {
-        BitSet myBitfield = fileManager.getBitfield();
-        java.util.List<Integer> interestingPieces = new java.util.ArrayList<>();
-        
-        for (int i = 0; i < numberOfPieces; i++) {
-            if (peerBitfield.get(i) && !myBitfield.get(i)) {
-                interestingPieces.add(i);
-            }
+    public int getQueuedMessages() {
+        if (channel != null) {
+            return channel.getPendingWrites();
+        }
+        return writer == null ? 0 : writer.getQueuedMessages();
+    }
+
+    /**
+     * Write a message header followed by a region of the file using transferTo.
+     * Returns false if the socket has no channel to transfer into.
+     */
+    private boolean sendFileRegion(byte[] header, long position, int length) throws IOException {
+        if (channel != null) {
+            channel.sendFile(header, fileManager, position, length);
+            return true;
         }
         
-        if (interestingPieces.isEmpty()) {
-            return -1;
+        SocketChannel socketChannel = socket.getChannel();
+        if (socketChannel == null) {
+            return false;
         }
         
-        return interestingPieces.get((int) (Math.random() * interestingPieces.size()));
+        writeLock.lock();
+        try {
+            outputStream.write(header);
+            outputStream.flush();
+            long sent = 0;
+            while (sent < length) {
+                sent += fileManager.transferTo(position + sent, length - sent, socketChannel);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Update interest from the running count of pieces the peer has that we lack
+     */
+    public void updateInterest() throws IOException {
+        if (hasInterestingPieces()) {
+            sendInterested();
+        } else {
+            sendNotInterested();
+        }
+    }
+
+    /**
+     * We stored a piece; it is no longer interesting from this peer. Must be called
+     * after the piece is set in our bitfield.
+     */
+    public void pieceCompleted(int pieceIndex) throws IOException {
+        synchronized (interestingPieces) {
+            interestingPieces.clear(pieceIndex);
+        }
+        updateInterest();
+    }
+
+    /**
+     * Check if peer has interesting pieces
+     */
+    public boolean hasInterestingPieces() {
+        return interestingPieces.cardinality() > 0;
+    }
+
+    /**
+     * Number of pieces the peer has that we lack
+     */
+    public int getInterestingPieceCount() {
+        return interestingPieces.cardinality();
     }
 
     // Getters and setters
@@ -239,9 +509,21 @@ public class PeerConnection {
     public boolean peerIsChoked() { return peerIsChoked.get(); }
     public boolean peerIsInterested() { return peerIsInterested.get(); }
     public void setPeerIsInterested(boolean interested) { this.peerIsInterested.set(interested); }
-    public BitSet getPeerBitfield() { return (BitSet) peerBitfield.clone(); }
+    public AtomicBitfield getPeerBitfield() { return peerBitfield; } // Live view, do not modify
     public void updatePeerBitfield(int pieceIndex) { peerBitfield.set(pieceIndex); }
     public long getDownloadRate() { return downloadRate.get(); }
+    public long getBytesIn() { return bytesIn.sum(); }
+    public long getBytesOut() { return bytesOut.sum(); }
+    public void addBytesIn(long bytes) { bytesIn.add(bytes); }
+
+    /**
+     * Count traffic in registry counters shared across reconnects instead of private ones
+     */
+    public void setTrafficCounters(LongAdder bytesIn, LongAdder bytesOut) {
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
     public void addDownloadRate(long bytes) {
         downloadRate.addAndGet(bytes);
     }
@@ -250,19 +532,42 @@ public class PeerConnection {
         lastRateResetTime = System.currentTimeMillis();
     }
     public long getLastRateResetTime() { return lastRateResetTime; }
+    public RequestQueue getRequestQueue() { return requestQueue; }
+    public void setRequestQueue(RequestQueue requestQueue) { this.requestQueue = requestQueue; }
+    public Lock getRequestLock() { return requestLock; }
+    public int getPeerExtensions() { return peerExtensions; }
+    public void setPeerExtensions(int peerExtensions) { this.peerExtensions = peerExtensions; }
+    public int getExtensions() { return extensions; }
+    public void setExtensions(int extensions) { this.extensions = extensions; }
+    public boolean supports(int extension) { return (extensions & extension) != 0; }
+    public boolean isBlockMode() { return blockMode; }
+    public void setBlockMode(boolean blockMode) { this.blockMode = blockMode; }
+
+    /**
+     * Handle received have message; returns true if the peer did not have the piece before
+     */
+    public boolean handleHaveMessage(Message message) throws IOException {
+        return handleHave(Message.parseHaveMessage(message.getPayload()));
+    }
 
     /**
-     * Handle received have message
+     * Record that the peer has a piece, from a HAVE or HAVE_BATCH; returns true if it is new
      */
-    public void handleHaveMessage() throws IOException {
-        Message message = receiveMessage();
-        if (message.getMessageType() != Message.HAVE) {
-            throw new IOException("Expected have message");
+    public boolean handleHave(int pieceIndex) throws IOException {
+        if (pieceIndex < 0 || pieceIndex >= numberOfPieces) {
+            return false;
+        }
+        boolean isNew;
+        // Checked under the lock so a piece we store concurrently is not counted after pieceCompleted
+        synchronized (interestingPieces) {
+            isNew = peerBitfield.set(pieceIndex);
+            if (isNew && !fileManager.hasPiece(pieceIndex)) {
+                interestingPieces.set(pieceIndex);
+            }
         }
-        int pieceIndex = Message.parseHaveMessage(message.getPayload());
-        peerBitfield.set(pieceIndex);
         logger.logReceivedHave(peerId, pieceIndex);
         updateInterest();
+        return isNew;
     }
 
     /**
@@ -291,10 +596,45 @@ public class PeerConnection {
         }
     }
 
+    public boolean isClosed() {
+        return closed.get() || (channel != null && channel.isClosed());
+    }
+
+    /**
+     * True when driven by an NioTransport I/O thread, which must never block
+     */
+    public boolean usesIoLoop() {
+        return channel != null;
+    }
+
+    /**
+     * Stop taking in messages from the peer until resumeReading; only NIO connections pause
+     */
+    public void pauseReading() {
+        if (channel != null) {
+            channel.pauseReading();
+        }
+    }
+
+    /**
+     * Start taking in messages again after pauseReading
+     */
+    public void resumeReading() {
+        if (channel != null) {
+            channel.resumeReading();
+        }
+    }
+
     /**
      * Close the connection
      */
     public void close() throws IOException {
+        closed.set(true);
+        if (channel != null) {
+            channel.close(null);
+            return;
+        }
+        if (writer != null) writer.close();
         if (inputStream != null) inputStream.close();
         if (outputStream != null) outputStream.close();
         if (socket != null) socket.close();
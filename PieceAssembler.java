@@ -0,0 +1,249 @@
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits pieces into fixed-size blocks for requesting and assembles received
+ * blocks back into whole pieces.
+ *
+ * A piece stays reserved in the PiecePicker while it is partially downloaded.
+ * Any peer that has the piece can be handed its remaining blocks, so blocks of
+ * one piece are fetched from several peers in parallel. With a block size equal
+ * to the piece size every piece is a single block.
+ */
+public class PieceAssembler {
+    private final PiecePicker piecePicker;
+    private final int pieceSize;
+    private final int blockSize;
+    private final long fileSize;
+    private final int numberOfPieces;
+    private final Map<Integer, PartialPiece> partials;
+
+    public PieceAssembler(PiecePicker piecePicker, int pieceSize, int blockSize, long fileSize) {
+        this.piecePicker = piecePicker;
+        this.pieceSize = pieceSize;
+        this.blockSize = blockSize > 0 ? Math.min(blockSize, pieceSize) : pieceSize;
+        this.fileSize = fileSize;
+        this.numberOfPieces = (int) Math.ceil((double) fileSize / pieceSize);
+        this.partials = new HashMap<>();
+    }
+
+    /**
+     * Choose the next block to request from a peer: first a block of a piece already
+     * in progress, otherwise the first block of a newly picked piece. Returns a
+     * RequestQueue block key, or -1 if the peer has nothing we can request.
+     */
+    public synchronized long nextBlock(AtomicBitfield peerBitfield) {
+        for (PartialPiece partial : partials.values()) {
+            if (peerBitfield.get(partial.pieceIndex)) {
+                for (int block = 0; block < partial.numberOfBlocks; block++) {
+                    if (partial.requesters[block] == 0 && !partial.received.get(block)) {
+                        partial.requesters[block]++;
+                        return RequestQueue.blockKey(partial.pieceIndex, block * blockSize);
+                    }
+                }
+            }
+        }
+
+        int pieceIndex = piecePicker.pick(peerBitfield);
+        if (pieceIndex == -1) {
+            return -1;
+        }
+        PartialPiece partial = new PartialPiece(pieceIndex, getPieceLength(pieceIndex));
+        partials.put(pieceIndex, partial);
+        partial.requesters[0]++;
+        return RequestQueue.blockKey(pieceIndex, 0);
+    }
+
+    /**
+     * Choose a new piece to request whole, for peers that do not take block requests.
+     * Every block of it counts as requested. Returns the block key of its first
+     * block, or -1 if the peer has nothing we can request.
+     */
+    public synchronized long nextPiece(AtomicBitfield peerBitfield) {
+        int pieceIndex = piecePicker.pick(peerBitfield);
+        if (pieceIndex == -1) {
+            return -1;
+        }
+        PartialPiece partial = new PartialPiece(pieceIndex, getPieceLength(pieceIndex));
+        partials.put(pieceIndex, partial);
+        for (int block = 0; block < partial.numberOfBlocks; block++) {
+            partial.requesters[block]++;
+        }
+        return RequestQueue.blockKey(pieceIndex, 0);
+    }
+
+    /**
+     * End game: once every missing piece is in progress, pick a block that is
+     * already requested from another peer but not yet received, so the tail of the
+     * download does not wait on a single slow peer. Skips blocks already in this
+     * peer's queue. Returns -1 if there is nothing to duplicate.
+     */
+    public synchronized long nextEndGameBlock(AtomicBitfield peerBitfield, RequestQueue requests) {
+        if (piecePicker.getCandidateCount() > 0) {
+            return -1;
+        }
+        for (PartialPiece partial : partials.values()) {
+            if (!peerBitfield.get(partial.pieceIndex)) {
+                continue;
+            }
+            for (int block = 0; block < partial.numberOfBlocks; block++) {
+                long key = RequestQueue.blockKey(partial.pieceIndex, block * blockSize);
+                if (!partial.received.get(block) && !requests.contains(key)) {
+                    partial.requesters[block]++;
+                    return key;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Store a received block. Returns the whole piece once its last block arrives,
+     * otherwise null. Blocks that are duplicates or do not fit are ignored.
+     */
+    public synchronized byte[] blockReceived(int pieceIndex, int offset, byte[] data) {
+        if (pieceIndex < 0 || pieceIndex >= numberOfPieces
+                || offset < 0 || offset % blockSize != 0 || data.length != getBlockLength(pieceIndex, offset)) {
+            return null;
+        }
+
+        PartialPiece partial = partials.get(pieceIndex);
+        if (partial == null) {
+            // A late reply for a block we released; keep it if nobody else took the piece
+            if (!piecePicker.reserve(pieceIndex)) {
+                return null;
+            }
+            partial = new PartialPiece(pieceIndex, getPieceLength(pieceIndex));
+            partials.put(pieceIndex, partial);
+        }
+
+        int block = offset / blockSize;
+        if (partial.received.get(block)) {
+            return null;
+        }
+        partial.received.set(block);
+
+        if (partial.numberOfBlocks == 1) {
+            partials.remove(pieceIndex);
+            return data;
+        }
+
+        if (partial.data == null) {
+            partial.data = new byte[partial.length];
+        }
+        System.arraycopy(data, 0, partial.data, offset, data.length);
+        if (partial.received.cardinality() < partial.numberOfBlocks) {
+            return null;
+        }
+        partials.remove(pieceIndex);
+        return partial.data;
+    }
+
+    /**
+     * Store a whole piece received in answer to a nextPiece request. Returns the
+     * piece, or null if it does not fit or the piece was already completed.
+     */
+    public synchronized byte[] pieceReceived(int pieceIndex, byte[] data) {
+        if (pieceIndex < 0 || pieceIndex >= numberOfPieces || data.length != getPieceLength(pieceIndex)) {
+            return null;
+        }
+        // Blocks other peers still owe for it are ignored when they arrive
+        if (partials.remove(pieceIndex) == null && !piecePicker.reserve(pieceIndex)) {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * A request for a block was dropped or cancelled; once no peer is asked for the
+     * block it becomes available again. A piece with nothing requested or received
+     * goes back to the picker.
+     */
+    public synchronized void release(int pieceIndex, int offset) {
+        PartialPiece partial = partials.get(pieceIndex);
+        if (partial == null) {
+            return;
+        }
+        int block = offset / blockSize;
+        releaseBlocks(partial, block, block + 1);
+    }
+
+    /**
+     * A whole-piece request from nextPiece was dropped or cancelled
+     */
+    public synchronized void releasePiece(int pieceIndex) {
+        PartialPiece partial = partials.get(pieceIndex);
+        if (partial == null) {
+            return;
+        }
+        releaseBlocks(partial, 0, partial.numberOfBlocks);
+    }
+
+    private void releaseBlocks(PartialPiece partial, int fromBlock, int toBlock) {
+        for (int block = fromBlock; block < toBlock; block++) {
+            if (partial.requesters[block] > 0) {
+                partial.requesters[block]--;
+            }
+        }
+        if (partial.received.isEmpty() && partial.isIdle()) {
+            partials.remove(partial.pieceIndex);
+            piecePicker.release(partial.pieceIndex);
+        }
+    }
+
+    /**
+     * Length of a block; the last block of the last piece may be shorter
+     */
+    public int getBlockLength(int pieceIndex, int offset) {
+        return Math.min(blockSize, getPieceLength(pieceIndex) - offset);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Number of pieces with at least one block requested or received
+     */
+    public synchronized int getPartialCount() {
+        return partials.size();
+    }
+
+    public int getPieceLength(int pieceIndex) {
+        if (pieceIndex == numberOfPieces - 1) {
+            long remainder = fileSize % pieceSize;
+            return remainder == 0 ? pieceSize : (int) remainder;
+        }
+        return pieceSize;
+    }
+
+    /**
+     * Download state of a single piece
+     */
+    private class PartialPiece {
+        final int pieceIndex;
+        final int length;
+        final int numberOfBlocks;
+        final int[] requesters; // Number of peers each block is requested from
+        final BitSet received;
+        byte[] data; // Allocated when the first block of a multi-block piece arrives
+
+        PartialPiece(int pieceIndex, int length) {
+            this.pieceIndex = pieceIndex;
+            this.length = length;
+            this.numberOfBlocks = (length + blockSize - 1) / blockSize;
+            this.requesters = new int[numberOfBlocks];
+            this.received = new BitSet(numberOfBlocks);
+        }
+
+        boolean isIdle() {
+            for (int count : requesters) {
+                if (count > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.util.Random;
+
+/**
+ * Swarm-wide rarest-first piece selection.
+ *
+ * Keeps a count of how many neighbors have each piece, updated incrementally
+ * from BITFIELD and HAVE messages and lost connections. Pieces we still need
+ * and have not requested are kept in one bucket per availability count, so a
+ * pick walks the buckets from rarest to most common and never rescans every
+ * bitfield. Ties within a bucket are broken by starting at a random slot.
+ */
+public class PiecePicker {
+    private static final int INITIAL_BUCKET_CAPACITY = 16;
+
+    private final int numberOfPieces;
+    private final int[] availability;
+    private final int[] positionInBucket; // -1 when not a candidate
+    private final boolean[] completed;
+    private int[][] buckets;
+    private int[] bucketSizes;
+    private int candidateCount;
+    private final Random random;
+
+    public PiecePicker(int numberOfPieces, AtomicBitfield havePieces) {
+        this(numberOfPieces, havePieces, new Random());
+    }
+
+    /**
+     * Break ties with the given generator, so a seeded one makes picks reproducible
+     */
+    public PiecePicker(int numberOfPieces, AtomicBitfield havePieces, Random random) {
+        this.numberOfPieces = numberOfPieces;
+        this.availability = new int[numberOfPieces];
+        this.positionInBucket = new int[numberOfPieces];
+        this.completed = new boolean[numberOfPieces];
+        this.buckets = new int[4][];
+        this.bucketSizes = new int[4];
+        this.random = random;
+
+        buckets[0] = new int[Math.max(INITIAL_BUCKET_CAPACITY, numberOfPieces)];
+        for (int i = 0; i < numberOfPieces; i++) {
+            if (havePieces.get(i)) {
+                completed[i] = true;
+                positionInBucket[i] = -1;
+            } else {
+                addToBucket(i);
+            }
+        }
+    }
+
+    /**
+     * A neighbor announced its bitfield
+     */
+    public synchronized void addPeer(AtomicBitfield peerBitfield) {
+        for (int i = peerBitfield.nextSetBit(0); i >= 0; i = peerBitfield.nextSetBit(i + 1)) {
+            changeAvailability(i, 1);
+        }
+    }
+
+    /**
+     * A neighbor disconnected; forget the pieces it had
+     */
+    public synchronized void removePeer(AtomicBitfield peerBitfield) {
+        for (int i = peerBitfield.nextSetBit(0); i >= 0; i = peerBitfield.nextSetBit(i + 1)) {
+            changeAvailability(i, -1);
+        }
+    }
+
+    /**
+     * A neighbor sent HAVE for a piece it did not have before
+     */
+    public synchronized void addPiece(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < numberOfPieces) {
+            changeAvailability(pieceIndex, 1);
+        }
+    }
+
+    /**
+     * Pick the rarest piece the peer has that we neither have nor requested,
+     * and reserve it. Returns -1 if there is none.
+     */
+    public synchronized int pick(AtomicBitfield peerBitfield) {
+        for (int level = 0; level < buckets.length; level++) {
+            int size = bucketSizes[level];
+            if (size == 0) {
+                continue;
+            }
+            int[] bucket = buckets[level];
+            int start = random.nextInt(size);
+            for (int i = 0; i < size; i++) {
+                int pieceIndex = bucket[(start + i) % size];
+                if (peerBitfield.get(pieceIndex)) {
+                    removeFromBucket(pieceIndex);
+                    return pieceIndex;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reserve a specific piece if it is still a candidate
+     */
+    public synchronized boolean reserve(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= numberOfPieces || positionInBucket[pieceIndex] == -1) {
+            return false;
+        }
+        removeFromBucket(pieceIndex);
+        return true;
+    }
+
+    /**
+     * Give back a reserved piece whose request was dropped
+     */
+    public synchronized void release(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < numberOfPieces
+                && !completed[pieceIndex] && positionInBucket[pieceIndex] == -1) {
+            addToBucket(pieceIndex);
+        }
+    }
+
+    /**
+     * We received the piece; it is never picked again unless released after a failed write
+     */
+    public synchronized void completed(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < numberOfPieces && !completed[pieceIndex]) {
+            completed[pieceIndex] = true;
+            if (positionInBucket[pieceIndex] != -1) {
+                removeFromBucket(pieceIndex);
+            }
+        }
+    }
+
+    /**
+     * Undo completed() for a piece that could not be stored
+     */
+    public synchronized void failed(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < numberOfPieces && completed[pieceIndex]) {
+            completed[pieceIndex] = false;
+            addToBucket(pieceIndex);
+        }
+    }
+
+    /**
+     * Number of pieces we still need that are not reserved
+     */
+    public synchronized int getCandidateCount() {
+        return candidateCount;
+    }
+
+    /**
+     * Number of neighbors known to have a piece
+     */
+    public synchronized int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    /**
+     * Number of pieces by availability: element k counts pieces that k neighbors have.
+     * Only pieces we still need are counted when missingOnly is set.
+     */
+    public synchronized int[] getAvailabilityHistogram(boolean missingOnly) {
+        int highest = 0;
+        for (int i = 0; i < numberOfPieces; i++) {
+            highest = Math.max(highest, availability[i]);
+        }
+        int[] histogram = new int[highest + 1];
+        for (int i = 0; i < numberOfPieces; i++) {
+            if (!missingOnly || !completed[i]) {
+                histogram[availability[i]]++;
+            }
+        }
+        return histogram;
+    }
+
+    private void changeAvailability(int pieceIndex, int delta) {
+        boolean candidate = positionInBucket[pieceIndex] != -1;
+        if (candidate) {
+            removeFromBucket(pieceIndex);
+        }
+        availability[pieceIndex] = Math.max(0, availability[pieceIndex] + delta);
+        if (candidate) {
+            addToBucket(pieceIndex);
+        }
+    }
+
+    private void addToBucket(int pieceIndex) {
+        int level = availability[pieceIndex];
+        if (level >= buckets.length) {
+            int newLength = Math.max(level + 1, buckets.length * 2);
+            int[][] newBuckets = new int[newLength][];
+            System.arraycopy(buckets, 0, newBuckets, 0, buckets.length);
+            int[] newSizes = new int[newLength];
+            System.arraycopy(bucketSizes, 0, newSizes, 0, bucketSizes.length);
+            buckets = newBuckets;
+            bucketSizes = newSizes;
+        }
+        if (buckets[level] == null) {
+            buckets[level] = new int[INITIAL_BUCKET_CAPACITY];
+        } else if (bucketSizes[level] == buckets[level].length) {
+            int[] grown = new int[buckets[level].length * 2];
+            System.arraycopy(buckets[level], 0, grown, 0, bucketSizes[level]);
+            buckets[level] = grown;
+        }
+        int position = bucketSizes[level]++;
+        buckets[level][position] = pieceIndex;
+        positionInBucket[pieceIndex] = position;
+        candidateCount++;
+    }
+
+    private void removeFromBucket(int pieceIndex) {
+        int level = availability[pieceIndex];
+        int position = positionInBucket[pieceIndex];
+        int last = --bucketSizes[level];
+        int moved = buckets[level][last];
+        buckets[level][position] = moved;
+        positionInBucket[moved] = position;
+        positionInBucket[pieceIndex] = -1;
+        candidateCount--;
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage backend used by FileManager. All access is by absolute file
+ * position, so implementations must not rely on a shared seek pointer.
+ */
+public interface PieceStore {
+    /**
+     * Read length bytes starting at position into buffer
+     */
+    void read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Write length bytes from data to the file starting at position
+     */
+    void write(long position, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Send bytes straight to a channel; may write fewer than count bytes on a non-blocking channel
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Force written data to disk
+     */
+    void sync() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for downloaded pieces. A single writer thread stores
+ * pieces and forces them to disk in batches instead of once per piece.
+ *
+ * Durability modes decide when a piece is reported as stored:
+ *   sync  - after the batch containing it has been forced to disk
+ *   write - as soon as it is written to the file; batches are still forced
+ *   none  - as soon as it is written; the OS decides when to flush
+ */
+public class PieceWriter implements Runnable {
+    public static final String DURABILITY_SYNC = "sync";
+    public static final String DURABILITY_WRITE = "write";
+    public static final String DURABILITY_NONE = "none";
+
+    private static final int QUEUE_CAPACITY = 256;
+
+    /**
+     * Called on the writer thread once a piece meets the durability mode
+     */
+    public interface Listener {
+        void pieceStored(int pieceIndex);
+
+        void pieceFailed(int pieceIndex, IOException cause);
+    }
+
+    private final PieceStore store;
+    private final Listener listener;
+    private final String durabilityMode;
+    private final int syncBatchPieces;
+    private final long syncBatchBytes;
+    private final long syncIntervalMillis;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Semaphore room; // Free slots under QUEUE_CAPACITY
+    private final Queue<Runnable> roomWaiters;
+    private final Thread thread;
+
+    public PieceWriter(PieceStore store, Listener listener, String durabilityMode,
+                       int syncBatchPieces, long syncBatchBytes, long syncIntervalMillis) {
+        this.store = store;
+        this.listener = listener;
+        this.durabilityMode = durabilityMode;
+        this.syncBatchPieces = Math.max(1, syncBatchPieces);
+        this.syncBatchBytes = syncBatchBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.queue = new LinkedBlockingQueue<>();
+        this.room = new Semaphore(QUEUE_CAPACITY);
+        this.roomWaiters = new ConcurrentLinkedQueue<>();
+        this.thread = new Thread(this, "piece-writer");
+        this.thread.start();
+    }
+
+    /**
+     * Queue a piece for writing; blocks when the disk falls too far behind
+     */
+    public void submit(int pieceIndex, long position, byte[] data) throws IOException {
+        try {
+            room.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing piece " + pieceIndex);
+        }
+        queue.add(new PendingWrite(pieceIndex, position, data, true));
+    }
+
+    /**
+     * Queue a piece without waiting, for callers such as an NIO loop that must
+     * not block. The piece is always queued; returns false if that took the
+     * queue over its capacity, in which case the caller should stop taking in
+     * more pieces until whenRoom says so.
+     */
+    public boolean submitNoWait(int pieceIndex, long position, byte[] data) {
+        boolean counted = room.tryAcquire();
+        queue.add(new PendingWrite(pieceIndex, position, data, counted));
+        return counted;
+    }
+
+    /**
+     * Run the callback once the queue has drained to half its capacity, or now if it already has
+     */
+    public void whenRoom(Runnable callback) {
+        roomWaiters.add(callback);
+        // Checked after adding so a writer draining the queue concurrently cannot miss it
+        if (hasRoom()) {
+            runRoomWaiters();
+        }
+    }
+
+    private boolean hasRoom() {
+        return room.availablePermits() >= QUEUE_CAPACITY / 2;
+    }
+
+    private void runRoomWaiters() {
+        Runnable callback;
+        while ((callback = roomWaiters.poll()) != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * True while the queue is at or over capacity
+     */
+    public boolean isFull() {
+        return room.availablePermits() == 0;
+    }
+
+    /**
+     * Number of pieces waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        List<PendingWrite> unsynced = new ArrayList<>();
+        long unsyncedBytes = 0;
+        long firstUnsyncedTime = 0;
+
+        while (true) {
+            PendingWrite next;
+            try {
+                if (unsynced.isEmpty()) {
+                    next = queue.take();
+                } else {
+                    // Group commit: give more pieces a chance to join the batch
+                    long wait = firstUnsyncedTime + syncIntervalMillis - System.currentTimeMillis();
+                    next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (next != null && next.isStop()) {
+                sync(unsynced);
+                break;
+            }
+
+            if (next != null) {
+                if (next.counted) {
+                    room.release();
+                }
+                if (!roomWaiters.isEmpty() && hasRoom()) {
+                    runRoomWaiters();
+                }
+                JfrEvents.PieceWrite event = new JfrEvents.PieceWrite();
+                event.begin();
+                try {
+                    store.write(next.position, next.data, 0, next.data.length);
+                    event.finish(next.pieceIndex, next.data.length, true);
+                } catch (IOException e) {
+                    listener.pieceFailed(next.pieceIndex, e);
+                    continue;
+                }
+
+                if (!durabilityMode.equals(DURABILITY_SYNC)) {
+                    listener.pieceStored(next.pieceIndex);
+                }
+                if (!durabilityMode.equals(DURABILITY_NONE)) {
+                    if (unsynced.isEmpty()) {
+                        firstUnsyncedTime = System.currentTimeMillis();
+                    }
+                    unsynced.add(next);
+                    unsyncedBytes += next.data.length;
+                }
+            }
+
+            if (!unsynced.isEmpty() && (next == null
+                    || unsynced.size() >= syncBatchPieces
+                    || unsyncedBytes >= syncBatchBytes
+                    || System.currentTimeMillis() - firstUnsyncedTime >= syncIntervalMillis)) {
+                sync(unsynced);
+                unsyncedBytes = 0;
+            }
+        }
+    }
+
+    private void sync(List<PendingWrite> unsynced) {
+        if (unsynced.isEmpty()) {
+            return;
+        }
+        JfrEvents.PieceSync event = new JfrEvents.PieceSync();
+        event.begin();
+        try {
+            store.sync();
+            event.finish(unsynced.size());
+            if (durabilityMode.equals(DURABILITY_SYNC)) {
+                for (PendingWrite write : unsynced) {
+                    listener.pieceStored(write.pieceIndex);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error syncing pieces to disk: " + e.getMessage());
+            if (durabilityMode.equals(DURABILITY_SYNC)) {
+                for (PendingWrite write : unsynced) {
+                    listener.pieceFailed(write.pieceIndex, e);
+                }
+            }
+        }
+        unsynced.clear();
+    }
+
+    /**
+     * Write everything still queued, force it to disk and stop the writer thread
+     */
+    public void close() throws IOException {
+        try {
+            queue.put(PendingWrite.STOP);
+            thread.join();
+            store.sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing piece writer");
+        }
+    }
+
+    /**
+     * A piece waiting to be written
+     */
+    private static class PendingWrite {
+        static final PendingWrite STOP = new PendingWrite(-1, 0, null, false);
+
+        final int pieceIndex;
+        final long position;
+        final byte[] data;
+        final boolean counted; // Holds a slot of the queue's capacity
+
+        PendingWrite(int pieceIndex, long position, byte[] data, boolean counted) {
+            this.pieceIndex = pieceIndex;
+            this.position = position;
+            this.data = data;
+            this.counted = counted;
+        }
+
+        boolean isStop() {
+            return this == STOP;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Piece store backed by a RandomAccessFile, using positional FileChannel reads and writes
+ */
+public class RandomAccessPieceStore implements PieceStore {
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    public RandomAccessPieceStore(String filePath) throws IOException {
+        this.file = new RandomAccessFile(filePath, "rw");
+        this.channel = file.getChannel();
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position() - offset);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of file at " + (position + target.position() - offset));
+            }
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position() - offset);
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
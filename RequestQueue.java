@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Outstanding requests to a single peer.
+ *
+ * Each request is identified by a block key combining the piece index and the
+ * byte offset of the block within the piece (always 0 for whole pieces).
+ *
+ * Several requests are kept in flight so the link does not sit idle for a
+ * round trip after every piece. The depth adapts to the bandwidth-delay
+ * product measured on this connection: depth = rate * rtt / request size + 1,
+ * clamped to [minDepth, maxDepth]. The shortest observed round trip is used
+ * so queueing at the sender does not inflate the estimate.
+ *
+ * Each request also gets a deadline: smoothed round trip plus four times its
+ * deviation, as TCP computes its retransmission timeout. A peer that lets a
+ * request expire is snubbing us; it is limited to one outstanding request and
+ * its timeout doubles until it delivers a block again.
+ */
+public class RequestQueue {
+    private static final double RATE_SMOOTHING = 0.2;
+    private static final long MAX_TIMEOUT_NANOS = 60_000_000_000L;
+    private static final int MAX_BACKOFF = 4;
+
+    private final int minDepth;
+    private final int maxDepth;
+    private final Map<Long, Long> outstanding; // block key -> send time in nanos
+    private int depth;
+    private long minRttNanos;
+    private double bytesPerSecond;
+    private double averageRequestBytes;
+    private long lastArrivalNanos;
+    private final long initialTimeoutNanos;
+    private final long minTimeoutNanos;
+    private double smoothedRttNanos;
+    private double rttDeviationNanos;
+    private int backoff;
+    private boolean snubbed;
+    private final LongSupplier clock; // Nanosecond time source
+
+    public RequestQueue(int minDepth, int maxDepth) {
+        this(minDepth, maxDepth, 5000, 500);
+    }
+
+    public RequestQueue(int minDepth, int maxDepth, long initialTimeoutMillis, long minTimeoutMillis) {
+        this(minDepth, maxDepth, initialTimeoutMillis, minTimeoutMillis, System::nanoTime);
+    }
+
+    /**
+     * Measure round trips and rates against the given clock instead of System.nanoTime, e.g. virtual time
+     */
+    public RequestQueue(int minDepth, int maxDepth, long initialTimeoutMillis, long minTimeoutMillis,
+                        LongSupplier clock) {
+        this.clock = clock;
+        this.minDepth = Math.max(1, minDepth);
+        this.maxDepth = Math.max(this.minDepth, maxDepth);
+        this.outstanding = new LinkedHashMap<>();
+        this.depth = this.minDepth;
+        this.minRttNanos = Long.MAX_VALUE;
+        this.initialTimeoutNanos = initialTimeoutMillis * 1_000_000L;
+        this.minTimeoutNanos = Math.min(minTimeoutMillis, initialTimeoutMillis) * 1_000_000L;
+    }
+
+    /**
+     * Combine a piece index and block offset into a single key
+     */
+    public static long blockKey(int pieceIndex, int offset) {
+        return ((long) pieceIndex << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    public static int pieceOf(long blockKey) {
+        return (int) (blockKey >>> 32);
+    }
+
+    public static int offsetOf(long blockKey) {
+        return (int) blockKey;
+    }
+
+    /**
+     * Check if another request can be sent
+     */
+    public synchronized boolean hasRoom() {
+        return outstanding.size() < (snubbed ? 1 : depth);
+    }
+
+    /**
+     * Record a request that is about to be sent and return its send time
+     */
+    public synchronized long add(long blockKey) {
+        long now = clock.getAsLong();
+        outstanding.put(blockKey, now);
+        return now;
+    }
+
+    public synchronized boolean contains(long blockKey) {
+        return outstanding.containsKey(blockKey);
+    }
+
+    /**
+     * A requested block arrived; update the rate and round-trip estimates.
+     * Returns the round trip in nanos, or -1 if the block was not outstanding on this connection.
+     */
+    public synchronized long complete(long blockKey, int bytes) {
+        // Any data, even a late reply, shows the peer is alive again
+        snubbed = false;
+        Long sentAt = outstanding.remove(blockKey);
+        if (sentAt == null) {
+            return -1;
+        }
+
+        long now = clock.getAsLong();
+        long rtt = now - sentAt;
+        minRttNanos = Math.min(minRttNanos, rtt);
+        if (smoothedRttNanos == 0) {
+            smoothedRttNanos = rtt;
+            rttDeviationNanos = rtt / 2.0;
+        } else {
+            rttDeviationNanos += 0.25 * (Math.abs(smoothedRttNanos - rtt) - rttDeviationNanos);
+            smoothedRttNanos += 0.125 * (rtt - smoothedRttNanos);
+        }
+        backoff = 0;
+        averageRequestBytes = averageRequestBytes == 0 ? bytes
+                : averageRequestBytes + RATE_SMOOTHING * (bytes - averageRequestBytes);
+        if (lastArrivalNanos != 0 && now > lastArrivalNanos) {
+            double rate = bytes * 1e9 / (now - lastArrivalNanos);
+            bytesPerSecond = bytesPerSecond == 0 ? rate
+                    : bytesPerSecond + RATE_SMOOTHING * (rate - bytesPerSecond);
+        }
+        lastArrivalNanos = now;
+        updateDepth();
+        return rtt;
+    }
+
+    /**
+     * A request's deadline passed. Returns false if it was answered, cancelled or
+     * re-sent in the meantime; otherwise removes it and marks the peer as snubbing.
+     */
+    public synchronized boolean timedOut(long blockKey, long sentAt) {
+        Long current = outstanding.get(blockKey);
+        if (current == null || current != sentAt) {
+            return false;
+        }
+        outstanding.remove(blockKey);
+        snubbed = true;
+        backoff = Math.min(MAX_BACKOFF, backoff + 1);
+        return true;
+    }
+
+    /**
+     * How long to wait for a request sent now
+     */
+    public synchronized long getTimeoutNanos() {
+        long timeout = smoothedRttNanos == 0 ? initialTimeoutNanos
+                : (long) (smoothedRttNanos + 4 * rttDeviationNanos);
+        timeout = Math.max(minTimeoutNanos, timeout) << backoff;
+        return Math.min(MAX_TIMEOUT_NANOS, timeout);
+    }
+
+    public synchronized boolean isSnubbed() {
+        return snubbed;
+    }
+
+    /**
+     * Remove a single outstanding request
+     */
+    public synchronized boolean remove(long blockKey) {
+        return outstanding.remove(blockKey) != null;
+    }
+
+    /**
+     * Drop every outstanding request (choked or disconnected) and return them
+     */
+    public synchronized List<Long> clear() {
+        List<Long> dropped = new ArrayList<>(outstanding.keySet());
+        outstanding.clear();
+        lastArrivalNanos = 0;
+        return dropped;
+    }
+
+    public synchronized int size() {
+        return outstanding.size();
+    }
+
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    public synchronized long getMinRttNanos() {
+        return minRttNanos == Long.MAX_VALUE ? 0 : minRttNanos;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    private void updateDepth() {
+        if (bytesPerSecond == 0 || averageRequestBytes == 0 || minRttNanos == Long.MAX_VALUE) {
+            return;
+        }
+        double bandwidthDelay = bytesPerSecond * (minRttNanos / 1e9);
+        int target = (int) Math.ceil(bandwidthDelay / averageRequestBytes) + 1;
+        depth = Math.max(minDepth, Math.min(maxDepth, target));
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Byte budget for piece data in one connection's send queue. Pieces that fit
+ * go straight to the queue; the rest wait here, in order, until written pieces
+ * free room. Nothing ever blocks: the thread answering a REQUEST is usually the
+ * one reading from the peer, and if it waited for the peer to drain our queue
+ * while the peer did the same, neither side would read again.
+ *
+ * Waiting pieces are only descriptors (header, file position, length), so they
+ * cost little memory; past a fixed number of them further requests are dropped
+ * and the peer's request timeout sends them elsewhere.
+ */
+public class SendBudget<T> {
+    private static final int MAX_DEFERRED = 1024;
+
+    private final int maxBytes;
+    private final ToIntFunction<T> bytesOf;
+    private final Consumer<T> enqueue;
+    private final ArrayDeque<T> deferred;
+    private final Lock lock;
+    private int queuedBytes; // Guarded by lock
+
+    /**
+     * @param enqueue puts an admitted piece on the send queue; called with the budget's lock held, must not block
+     */
+    public SendBudget(int maxBytes, ToIntFunction<T> bytesOf, Consumer<T> enqueue) {
+        this.maxBytes = Math.max(1, maxBytes);
+        this.bytesOf = bytesOf;
+        this.enqueue = enqueue;
+        this.deferred = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Queue the piece now if it fits, otherwise hold it until room frees up.
+     * Returns false if it was dropped because too many pieces are already waiting.
+     */
+    public boolean offer(T piece) {
+        lock.lock();
+        try {
+            if (deferred.isEmpty() && fits(bytesOf.applyAsInt(piece))) {
+                admit(piece);
+                return true;
+            }
+            if (deferred.size() >= MAX_DEFERRED) {
+                return false;
+            }
+            deferred.add(piece);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A queued piece was written or removed from the send queue; admits waiting pieces that now fit
+     */
+    public void release(T piece) {
+        lock.lock();
+        try {
+            queuedBytes -= bytesOf.applyAsInt(piece);
+            T next;
+            while ((next = deferred.peek()) != null && fits(bytesOf.applyAsInt(next))) {
+                admit(deferred.poll());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop waiting pieces that match; returns how many were dropped
+     */
+    public int removeDeferred(Predicate<T> filter) {
+        lock.lock();
+        try {
+            int removed = 0;
+            for (Iterator<T> it = deferred.iterator(); it.hasNext(); ) {
+                if (filter.test(it.next())) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget everything, for a closed connection
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            deferred.clear();
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes of piece data on the send queue
+     */
+    public int getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pieces waiting for room
+     */
+    public int getDeferredCount() {
+        lock.lock();
+        try {
+            return deferred.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(int bytes) {
+        // A piece larger than the whole budget still goes once the queue is empty
+        return queuedBytes == 0 || queuedBytes + bytes <= maxBytes;
+    }
+
+    private void admit(T piece) {
+        queuedBytes += bytesOf.applyAsInt(piece);
+        enqueue.accept(piece);
+    }
+}
@@ -0,0 +1,220 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Loopback-only HTTP server with live JSON stats for a running peer.
+ *
+ *   GET /stats    pieces, neighbors, per-connection state and availability
+ *   GET /metrics  the Metrics registry snapshot
+ *
+ * Every value is read from lock-free or briefly synchronized state, and the
+ * response is built on one server thread, so scraping does not hold up the
+ * peer's own threads.
+ */
+public class StatsServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int peerId;
+    private final FileManager fileManager;
+    private final PiecePicker piecePicker;
+    private final PieceAssembler pieceAssembler;
+    private final Map<Integer, PeerConnection> connections;
+    private final Metrics metrics;
+    private final Supplier<Collection<Integer>> preferredNeighbors;
+    private final Supplier<Integer> optimisticNeighbor;
+
+    public StatsServer(int port, int peerId, FileManager fileManager, PiecePicker piecePicker,
+                       PieceAssembler pieceAssembler, Map<Integer, PeerConnection> connections, Metrics metrics,
+                       Supplier<Collection<Integer>> preferredNeighbors, Supplier<Integer> optimisticNeighbor)
+            throws IOException {
+        this.peerId = peerId;
+        this.fileManager = fileManager;
+        this.piecePicker = piecePicker;
+        this.pieceAssembler = pieceAssembler;
+        this.connections = connections;
+        this.metrics = metrics;
+        this.preferredNeighbors = preferredNeighbors;
+        this.optimisticNeighbor = optimisticNeighbor;
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "stats-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/stats", exchange -> respond(exchange, this::statsJson));
+        server.createContext("/metrics", exchange -> respond(exchange, this::metricsJson));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange, Supplier<String> body) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error serving stats: " + e.getMessage());
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String statsJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        int have = fileManager.getNumberOfPieces();
+        int total = fileManager.getTotalNumberOfPieces();
+
+        sb.append("{\"peerId\":").append(peerId);
+        sb.append(",\"timeMillis\":").append(System.currentTimeMillis());
+        sb.append(",\"pieces\":{\"have\":").append(have);
+        sb.append(",\"total\":").append(total);
+        sb.append(",\"partial\":").append(pieceAssembler.getPartialCount());
+        sb.append(",\"writeQueue\":").append(fileManager.getWriteQueueSize());
+        sb.append(",\"percentComplete\":").append(total == 0 ? 100.0 : Math.round(have * 10000.0 / total) / 100.0);
+        sb.append('}');
+
+        List<Integer> preferred = new ArrayList<>(preferredNeighbors.get());
+        sb.append(",\"preferredNeighbors\":");
+        appendInts(sb, preferred);
+        Integer optimistic = optimisticNeighbor.get();
+        sb.append(",\"optimisticNeighbor\":").append(optimistic != null ? optimistic.toString() : "null");
+
+        sb.append(",\"connections\":[");
+        boolean first = true;
+        for (PeerConnection conn : connections.values()) {
+            if (!first) sb.append(',');
+            first = false;
+            appendConnection(sb, conn);
+        }
+        sb.append(']');
+
+        sb.append(",\"availability\":{\"all\":");
+        appendInts(sb, piecePicker.getAvailabilityHistogram(false));
+        sb.append(",\"missing\":");
+        appendInts(sb, piecePicker.getAvailabilityHistogram(true));
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private void appendConnection(StringBuilder sb, PeerConnection conn) {
+        RequestQueue requests = conn.getRequestQueue();
+        AtomicBitfield peerBitfield = conn.getPeerBitfield();
+        sb.append("{\"peerId\":").append(conn.getPeerId());
+        sb.append(",\"chokedByPeer\":").append(conn.isChoked());
+        sb.append(",\"interestedInPeer\":").append(conn.isInterested());
+        sb.append(",\"peerChoked\":").append(conn.peerIsChoked());
+        sb.append(",\"peerInterested\":").append(conn.peerIsInterested());
+        sb.append(",\"snubbed\":").append(requests.isSnubbed());
+        sb.append(",\"extensions\":\"").append(Extensions.describe(conn.getExtensions())).append('"');
+        sb.append(",\"peerPieces\":").append(peerBitfield.cardinality());
+        sb.append(",\"peerPercentComplete\":").append(peerBitfield.size() == 0 ? 100.0
+                : Math.round(peerBitfield.cardinality() * 10000.0 / peerBitfield.size()) / 100.0);
+        sb.append(",\"interestingPieces\":").append(conn.getInterestingPieceCount());
+        sb.append(",\"bytesIn\":").append(conn.getBytesIn());
+        sb.append(",\"bytesOut\":").append(conn.getBytesOut());
+        sb.append(",\"intervalBytesIn\":").append(conn.getDownloadRate());
+        sb.append(",\"downloadBytesPerSecond\":").append(Math.round(requests.getBytesPerSecond()));
+        sb.append(",\"outstandingRequests\":").append(requests.size());
+        sb.append(",\"requestDepth\":").append(requests.getDepth());
+        sb.append(",\"minRttMicros\":").append(requests.getMinRttNanos() / 1000);
+        sb.append('}');
+    }
+
+    private String metricsJson() {
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"timeMillis\":").append(snapshot.getTimeMillis());
+        sb.append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : snapshot.getCounters().entrySet()) {
+            first = appendName(sb, entry.getKey(), first);
+            sb.append(entry.getValue());
+        }
+        sb.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Long> entry : snapshot.getGauges().entrySet()) {
+            first = appendName(sb, entry.getKey(), first);
+            sb.append(entry.getValue());
+        }
+        sb.append("},\"meters\":{");
+        first = true;
+        for (Map.Entry<String, double[]> entry : snapshot.getMeters().entrySet()) {
+            first = appendName(sb, entry.getKey(), first);
+            sb.append("{\"count\":").append((long) entry.getValue()[0]);
+            sb.append(",\"ratePerSecond\":").append(entry.getValue()[1]).append('}');
+        }
+        sb.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshot.getHistograms().entrySet()) {
+            first = appendName(sb, entry.getKey(), first);
+            LatencyHistogram.Snapshot h = entry.getValue();
+            sb.append("{\"count\":").append(h.getCount());
+            sb.append(",\"mean\":").append(Math.round(h.getMean() * 10) / 10.0);
+            sb.append(",\"p50\":").append(h.getPercentile(0.5));
+            sb.append(",\"p90\":").append(h.getPercentile(0.9));
+            sb.append(",\"p99\":").append(h.getPercentile(0.99));
+            sb.append(",\"max\":").append(h.getMax()).append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    /**
+     * Metric names are plain identifiers with dots, so they need no escaping
+     */
+    private static boolean appendName(StringBuilder sb, String name, boolean first) {
+        if (!first) sb.append(',');
+        sb.append('"').append(name).append("\":");
+        return false;
+    }
+
+    private static void appendInts(StringBuilder sb, List<Integer> values) {
+        sb.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(values.get(i));
+        }
+        sb.append(']');
+    }
+
+    private static void appendInts(StringBuilder sb, int[] values) {
+        sb.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(values[i]);
+        }
+        sb.append(']');
+    }
+}
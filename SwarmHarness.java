@@ -0,0 +1,553 @@
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load harness that runs a whole swarm on one machine over loopback.
+ *
+ * Usage: java SwarmHarness [options] [Key=Value ...]
+ *   -peers N        peers in the swarm (default 9)
+ *   -seeds N        peers that start with the file (default 1)
+ *   -size BYTES     size of the synthetic file (default 24301474, the large sample)
+ *   -piece BYTES    piece size (default 16384)
+ *   -port PORT      listening port of the first peer; the rest follow (default 7001)
+ *   -dir PATH       working directory (default a new temporary directory)
+ *   -timeout SECS   give up on stragglers after this long (default 600)
+ *   -processes      run each peer in its own JVM instead of in this one
+ *
+ * Key=Value pairs are appended to the generated Common.cfg, so they override
+ * the sample defaults, e.g. TransportMode=nio UnchokingInterval=1. Swarms of
+ * more than a few dozen peers need TransportMode=nio: with blocking sockets
+ * every connection holds a reader thread, and the swarm is a full mesh.
+ *
+ * Peers start in PeerInfo.cfg order, each once the previous one is listening.
+ * The report gives time to full completion, per-peer completion time and
+ * throughput, and for in-process runs CPU time, approximate allocation and GC.
+ * Peer output goes to peers.out (in-process) or out_[ID].txt (processes).
+ */
+public class SwarmHarness {
+    private static final int FIRST_PEER_ID = 1001;
+    private static final long POLL_MILLIS = 50;
+    private static final long LISTEN_TIMEOUT_MILLIS = 30_000;
+
+    private int peers = 9;
+    private int seeds = 1;
+    private long fileSize = 24301474L;
+    private int pieceSize = 16384;
+    private int basePort = 7001;
+    private File directory;
+    private long timeoutSeconds = 600;
+    private boolean processes;
+    private final List<String> extraConfig = new ArrayList<>();
+
+    private long[] startNanos;
+    private long[] completeNanos;
+    private long swarmStartNanos;
+
+    public static void main(String[] args) {
+        SwarmHarness harness = new SwarmHarness();
+        try {
+            harness.parseArgs(args);
+            harness.run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java SwarmHarness [-peers N] [-seeds N] [-size BYTES] [-piece BYTES] "
+                    + "[-port PORT] [-dir PATH] [-timeout SECS] [-processes] [Key=Value ...]");
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("Error running swarm: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-processes")) {
+                processes = true;
+                continue;
+            }
+            if (!arg.startsWith("-")) {
+                int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Expected Key=Value: " + arg);
+                }
+                extraConfig.add(arg.substring(0, eq) + " " + arg.substring(eq + 1));
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "-peers":
+                    peers = Integer.parseInt(value);
+                    break;
+                case "-seeds":
+                    seeds = Integer.parseInt(value);
+                    break;
+                case "-size":
+                    fileSize = Long.parseLong(value);
+                    break;
+                case "-piece":
+                    pieceSize = Integer.parseInt(value);
+                    break;
+                case "-port":
+                    basePort = Integer.parseInt(value);
+                    break;
+                case "-dir":
+                    directory = new File(value);
+                    break;
+                case "-timeout":
+                    timeoutSeconds = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (peers < 2 || seeds < 1 || seeds >= peers) {
+            throw new IllegalArgumentException("Need at least 2 peers and between 1 and peers-1 seeds");
+        }
+        if (directory == null) {
+            directory = Files.createTempDirectory("swarm").toFile();
+        }
+    }
+
+    private void run() throws Exception {
+        prepare();
+        System.out.printf("Swarm of %d peers (%d seeds), %d-byte file in %d-byte pieces, %s, in %s%n",
+                          peers, seeds, fileSize, pieceSize, processes ? "one JVM per peer" : "one JVM", directory);
+
+        startNanos = new long[peers];
+        completeNanos = new long[peers];
+        boolean finished = processes ? runProcesses() : runInProcess();
+
+        int mismatches = verify();
+        long last = 0;
+        for (long complete : completeNanos) {
+            last = Math.max(last, complete);
+        }
+        System.out.println();
+        if (finished) {
+            System.out.printf("Full swarm completion: %.2f s after the first peer started%n",
+                              (last - swarmStartNanos) / 1e9);
+        } else {
+            System.out.printf("Timed out after %d s with %d peers incomplete%n", timeoutSeconds, countIncomplete());
+        }
+        System.out.println(mismatches == 0 ? "All downloaded files match the seed"
+                                           : mismatches + " downloaded files differ from the seed");
+    }
+
+    /**
+     * Write Common.cfg and PeerInfo.cfg and give every seed a copy of a random file
+     */
+    private void prepare() throws IOException {
+        directory.mkdirs();
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(directory, "Common.cfg")))) {
+            out.println("NumberOfPreferredNeighbors 3");
+            out.println("UnchokingInterval 5");
+            out.println("OptimisticUnchokingInterval 10");
+            out.println("FileName thefile");
+            out.println("FileSize " + fileSize);
+            out.println("PieceSize " + pieceSize);
+            for (String line : extraConfig) {
+                out.println(line);
+            }
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(directory, "PeerInfo.cfg")))) {
+            for (int i = 0; i < peers; i++) {
+                out.println((FIRST_PEER_ID + i) + " localhost " + (basePort + i) + " " + (i < seeds ? 1 : 0));
+            }
+        }
+
+        Random random = new Random(42);
+        byte[] chunk = new byte[1 << 20];
+        File seedFile = peerFile(0);
+        seedFile.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(seedFile))) {
+            for (long written = 0; written < fileSize; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+            }
+        }
+        for (int i = 1; i < seeds; i++) {
+            peerFile(i).getParentFile().mkdirs();
+            Files.copy(seedFile.toPath(), peerFile(i).toPath());
+        }
+    }
+
+    private boolean runInProcess() throws Exception {
+        PrintStream console = System.out;
+        PrintStream peerOutput = new PrintStream(new FileOutputStream(new File(directory, "peers.out")), true);
+        ResourceSampler sampler = new ResourceSampler();
+        peerProcess[] swarm = new peerProcess[peers];
+        boolean finished;
+        try {
+            System.setOut(peerOutput);
+            System.setErr(peerOutput);
+            sampler.start();
+
+            swarmStartNanos = System.nanoTime();
+            for (int i = 0; i < peers; i++) {
+                peerProcess peer = new peerProcess(FIRST_PEER_ID + i, directory.getPath());
+                swarm[i] = peer;
+                startNanos[i] = System.nanoTime();
+                Thread starter = new Thread(peer::start, "start-" + (FIRST_PEER_ID + i));
+                starter.setDaemon(true);
+                starter.start();
+                if (!peer.awaitListening(LISTEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Peer " + (FIRST_PEER_ID + i) + " did not start listening");
+                }
+            }
+            long startupNanos = System.nanoTime() - swarmStartNanos;
+
+            finished = awaitCompletion(i -> swarm[i].hasCompleteFile());
+            sampler.stop();
+            for (peerProcess peer : swarm) {
+                peer.stop();
+            }
+
+            console.printf("Started %d peers in %.2f s%n", peers, startupNanos / 1e9);
+            printPeerTable(console, swarm);
+            sampler.print(console, System.nanoTime() - swarmStartNanos);
+        } finally {
+            for (peerProcess peer : swarm) {
+                if (peer != null) {
+                    peer.stop();
+                }
+            }
+            System.setOut(console);
+            System.setErr(console);
+            peerOutput.close();
+        }
+        return finished;
+    }
+
+    private boolean runProcesses() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        Process[] children = new Process[peers];
+        long[] cpuNanos = new long[peers];
+        LogWatcher[] logs = new LogWatcher[peers];
+        boolean finished;
+        try {
+            swarmStartNanos = System.nanoTime();
+            for (int i = 0; i < peers; i++) {
+                int peerId = FIRST_PEER_ID + i;
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath, "peerProcess", String.valueOf(peerId));
+                builder.directory(directory);
+                builder.redirectErrorStream(true);
+                builder.redirectOutput(new File(directory, "out_" + peerId + ".txt"));
+                startNanos[i] = System.nanoTime();
+                children[i] = builder.start();
+                logs[i] = new LogWatcher(new File(directory, "log_peer_" + peerId + ".log"));
+                awaitPort(basePort + i, children[i]);
+            }
+            long startupNanos = System.nanoTime() - swarmStartNanos;
+
+            finished = awaitCompletion(i -> {
+                sampleCpu(children, cpuNanos, i);
+                return i < seeds || logs[i].contains(" has downloaded the complete file.");
+            });
+            for (int i = 0; i < peers; i++) {
+                sampleCpu(children, cpuNanos, i);
+            }
+
+            System.out.printf("Started %d peers in %.2f s%n", peers, startupNanos / 1e9);
+            printPeerTable(System.out, null);
+            long totalCpu = Arrays.stream(cpuNanos).sum();
+            long wall = System.nanoTime() - swarmStartNanos;
+            System.out.printf("CPU: %.2f s across all peers (at least; read while they ran), %.0f%% of one core%n",
+                              totalCpu / 1e9, 100.0 * totalCpu / wall);
+        } finally {
+            for (Process child : children) {
+                if (child != null) {
+                    child.destroy();
+                }
+            }
+            for (Process child : children) {
+                if (child != null && !child.waitFor(10, TimeUnit.SECONDS)) {
+                    child.destroyForcibly();
+                }
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * CPU time is only readable while the child is alive, so keep the latest reading
+     */
+    private static void sampleCpu(Process[] children, long[] cpuNanos, int index) {
+        children[index].info().totalCpuDuration().ifPresent(cpu -> cpuNanos[index] = cpu.toNanos());
+    }
+
+    private interface CompletionCheck {
+        boolean isComplete(int peerIndex) throws IOException;
+    }
+
+    /**
+     * Poll until every peer has the file, noting when each one got there
+     */
+    private boolean awaitCompletion(CompletionCheck check) throws IOException, InterruptedException {
+        long deadline = swarmStartNanos + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (System.nanoTime() < deadline) {
+            boolean all = true;
+            for (int i = 0; i < peers; i++) {
+                if (completeNanos[i] == 0) {
+                    if (check.isComplete(i)) {
+                        completeNanos[i] = System.nanoTime();
+                    } else {
+                        all = false;
+                    }
+                }
+            }
+            if (all) {
+                return true;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        return false;
+    }
+
+    /**
+     * Wait until a child accepts connections; a connection closed before the handshake is ignored by the peer
+     */
+    private void awaitPort(int port, Process child) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LISTEN_TIMEOUT_MILLIS);
+        while (System.nanoTime() < deadline) {
+            if (!child.isAlive()) {
+                throw new IOException("Peer on port " + port + " exited with status " + child.exitValue());
+            }
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+        throw new IOException("Peer on port " + port + " did not start listening");
+    }
+
+    private void printPeerTable(PrintStream out, peerProcess[] swarm) {
+        out.println();
+        out.println(swarm != null ? "  peer   complete(s)   download(MB/s)   in(MB)    out(MB)"
+                                  : "  peer   complete(s)   download(MB/s)");
+        List<Double> times = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            String complete = "-";
+            String rate = "-";
+            if (completeNanos[i] != 0) {
+                double seconds = (completeNanos[i] - swarmStartNanos) / 1e9;
+                complete = String.format("%.2f", seconds);
+                if (i >= seeds) {
+                    times.add(seconds);
+                    double own = (completeNanos[i] - startNanos[i]) / 1e9;
+                    rate = String.format("%.2f", fileSize / 1e6 / Math.max(own, 1e-3));
+                } else {
+                    rate = "seed";
+                }
+            }
+            out.printf("  %d   %11s   %14s", FIRST_PEER_ID + i, complete, rate);
+            if (swarm != null) {
+                long[] traffic = traffic(swarm[i].getMetrics());
+                out.printf("   %7.1f   %8.1f", traffic[0] / 1e6, traffic[1] / 1e6);
+            }
+            out.println();
+        }
+        if (!times.isEmpty()) {
+            times.sort(null);
+            double total = 0;
+            for (double time : times) {
+                total += time;
+            }
+            double last = times.get(times.size() - 1);
+            out.printf("%nLeechers: mean %.2f s, median %.2f s, max %.2f s; aggregate %.2f MB/s%n",
+                       total / times.size(), times.get(times.size() / 2), last,
+                       times.size() * fileSize / 1e6 / Math.max(last, 1e-3));
+        }
+    }
+
+    /**
+     * Piece bytes received and sent by a peer, from its per-connection counters
+     */
+    private static long[] traffic(Metrics metrics) {
+        long in = 0;
+        long out = 0;
+        for (Map.Entry<String, Long> counter : metrics.snapshot().getCounters().entrySet()) {
+            if (counter.getKey().endsWith(".bytes_in")) {
+                in += counter.getValue();
+            } else if (counter.getKey().endsWith(".bytes_out")) {
+                out += counter.getValue();
+            }
+        }
+        return new long[] {in, out};
+    }
+
+    /**
+     * Compare every peer's copy with the first seed's; returns the number that differ
+     */
+    private int verify() throws IOException {
+        byte[] expected = Files.readAllBytes(peerFile(0).toPath());
+        int mismatches = 0;
+        for (int i = seeds; i < peers; i++) {
+            File file = peerFile(i);
+            if (completeNanos[i] != 0 && (!file.exists() || !Arrays.equals(expected, Files.readAllBytes(file.toPath())))) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private int countIncomplete() {
+        int incomplete = 0;
+        for (long complete : completeNanos) {
+            if (complete == 0) {
+                incomplete++;
+            }
+        }
+        return incomplete;
+    }
+
+    private File peerFile(int peerIndex) {
+        return new File(new File(directory, "peer_" + (FIRST_PEER_ID + peerIndex)), "thefile");
+    }
+
+    /**
+     * Follows a peer's log file for a given line without rereading it
+     */
+    private static class LogWatcher {
+        private final File file;
+        private long position;
+        private String tail = "";
+
+        LogWatcher(File file) {
+            this.file = file;
+        }
+
+        boolean contains(String text) throws IOException {
+            if (!file.exists()) {
+                return false;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                long length = raf.length();
+                if (length <= position) {
+                    return false;
+                }
+                byte[] bytes = new byte[(int) (length - position)];
+                raf.seek(position);
+                raf.readFully(bytes);
+                position = length;
+                // Keep a partial last line so a match split across reads is still found
+                String chunk = tail + new String(bytes, "UTF-8");
+                boolean found = chunk.contains(text);
+                int newline = chunk.lastIndexOf('\n');
+                tail = newline >= 0 ? chunk.substring(newline + 1) : chunk;
+                return found;
+            }
+        }
+    }
+
+    /**
+     * CPU, allocation and GC figures for this JVM while the swarm runs in-process.
+     * Allocation is summed from per-thread counters sampled every POLL_MILLIS, so
+     * bytes allocated by a thread after its last sample are missed.
+     */
+    private static class ResourceSampler implements Runnable {
+        private final com.sun.management.ThreadMXBean threads;
+        private final com.sun.management.OperatingSystemMXBean os;
+        private final Map<Long, Long> baseline = new HashMap<>(); // Allocated before start, by thread
+        private final Map<Long, Long> latest = new HashMap<>();
+        private Thread thread;
+        private volatile boolean running;
+        private long startCpuNanos;
+        private long startGcCount;
+        private long startGcMillis;
+        private int peakThreads;
+
+        ResourceSampler() {
+            this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            this.os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        }
+
+        void start() {
+            startCpuNanos = os.getProcessCpuTime();
+            startGcCount = gcCount();
+            startGcMillis = gcMillis();
+            sample();
+            baseline.putAll(latest); // Threads that already exist count from here
+            running = true;
+            thread = new Thread(this, "swarm-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            sample();
+        }
+
+        private synchronized void sample() {
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] >= 0) {
+                    latest.put(ids[i], allocated[i]);
+                }
+            }
+            peakThreads = Math.max(peakThreads, threads.getThreadCount());
+        }
+
+        synchronized void print(PrintStream out, long wallNanos) {
+            long total = 0;
+            for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+                total += entry.getValue() - baseline.getOrDefault(entry.getKey(), 0L);
+            }
+            long cpu = os.getProcessCpuTime() - startCpuNanos;
+            out.printf("CPU: %.2f s, %.0f%% of one core over %.2f s wall; peak %d threads%n",
+                       cpu / 1e9, 100.0 * cpu / wallNanos, wallNanos / 1e9, peakThreads);
+            out.printf("Allocated: about %.1f MB; GC: %d collections, %d ms%n",
+                       total / 1e6, gcCount() - startGcCount, gcMillis() - startGcMillis);
+        }
+
+        private static long gcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private static long gcMillis() {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis;
+        }
+    }
+}
@@ -0,0 +1,669 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Deterministic discrete-event simulation of a swarm in virtual time.
+ *
+ * Usage: java SwarmSimulator [options]
+ *   -config PATH        Common.cfg for file, piece, block, pipelining and choking settings (default Common.cfg)
+ *   -peers N            peers at the start (default 1000)
+ *   -seeds N            of which seeds (default 1)
+ *   -degree N           connections each joining peer opens to random live peers (default 20)
+ *   -upload B[-B]       upload bandwidth per peer in bytes/s, drawn uniformly from the range (default 1000000)
+ *   -latency MS[-MS]    one-way access latency per peer; a link's latency is the sum of both ends (default 20)
+ *   -churn RATE         leechers leaving per virtual second, each replaced by a new empty peer (default 0)
+ *   -linger SECS        leechers leave this long after completing; -1 keeps them seeding (default -1)
+ *   -time SECS          stop after this much virtual time (default 3600)
+ *   -seed N             random seed; the same seed and options give the same run (default 1)
+ *
+ * The decisions are the peer's own code: preferred and optimistic neighbors
+ * come from peerProcess.selectPreferredNeighbors and selectOptimisticNeighbor,
+ * requests from PieceAssembler and PiecePicker (rarest first, end game), and
+ * pipelining from RequestQueue running on the virtual clock. Only the network
+ * is modelled: each peer uploads one block at a time at its bandwidth in the
+ * order requests arrive, messages take the link latency, download bandwidth is
+ * unlimited and nothing is lost, so requests never time out.
+ */
+public class SwarmSimulator {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private String configPath = "Common.cfg";
+    private int initialPeers = 1000;
+    private int initialSeeds = 1;
+    private int degree = 20;
+    private long minUpload = 1_000_000;
+    private long maxUpload = 1_000_000;
+    private long minLatencyMillis = 20;
+    private long maxLatencyMillis = 20;
+    private double churnPerSecond = 0;
+    private double lingerSeconds = -1;
+    private double maxSeconds = 3600;
+    private long randomSeed = 1;
+
+    private CommonConfig config;
+    private Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now; // Virtual nanos
+    private long sequence;
+    private long eventCount;
+    private int nextPeerId = 1;
+    private final List<SimPeer> livePeers = new ArrayList<>();
+    private final List<SimPeer> allPeers = new ArrayList<>();
+    private final Map<Integer, byte[]> blockData = new HashMap<>(); // Zero-filled stand-ins by length
+    private int initialLeechersLeft;
+    private long initialSwarmDoneAt = -1;
+
+    public static void main(String[] args) {
+        SwarmSimulator simulator = new SwarmSimulator();
+        try {
+            simulator.parseArgs(args);
+            simulator.run(System.out);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java SwarmSimulator [-config PATH] [-peers N] [-seeds N] [-degree N] "
+                    + "[-upload B[-B]] [-latency MS[-MS]] [-churn RATE] [-linger SECS] [-time SECS] [-seed N]");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error reading configuration: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-config":
+                    configPath = value;
+                    break;
+                case "-peers":
+                    initialPeers = Integer.parseInt(value);
+                    break;
+                case "-seeds":
+                    initialSeeds = Integer.parseInt(value);
+                    break;
+                case "-degree":
+                    degree = Integer.parseInt(value);
+                    break;
+                case "-upload":
+                    long[] upload = parseRange(value);
+                    minUpload = upload[0];
+                    maxUpload = upload[1];
+                    break;
+                case "-latency":
+                    long[] latency = parseRange(value);
+                    minLatencyMillis = latency[0];
+                    maxLatencyMillis = latency[1];
+                    break;
+                case "-churn":
+                    churnPerSecond = Double.parseDouble(value);
+                    break;
+                case "-linger":
+                    lingerSeconds = Double.parseDouble(value);
+                    break;
+                case "-time":
+                    maxSeconds = Double.parseDouble(value);
+                    break;
+                case "-seed":
+                    randomSeed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (initialPeers < 2 || initialSeeds < 1 || initialSeeds >= initialPeers || degree < 1 || minUpload <= 0) {
+            throw new IllegalArgumentException("Need at least 2 peers, 1 to peers-1 seeds, a degree and an upload rate");
+        }
+    }
+
+    private static long[] parseRange(String value) {
+        int dash = value.indexOf('-');
+        long low = Long.parseLong(dash < 0 ? value : value.substring(0, dash));
+        long high = dash < 0 ? low : Long.parseLong(value.substring(dash + 1));
+        if (high < low) {
+            throw new IllegalArgumentException("Empty range: " + value);
+        }
+        return new long[] {low, high};
+    }
+
+    public void run(PrintStream out) throws IOException {
+        config = new CommonConfig(configPath);
+        random = new Random(randomSeed);
+        out.printf("Simulating %d peers (%d seeds, degree %d), %d pieces of %d bytes, upload %d-%d B/s, "
+                   + "latency %d-%d ms, churn %.2f/s, seed %d%n",
+                   initialPeers, initialSeeds, degree, config.getNumberOfPieces(), config.getPieceSize(),
+                   minUpload, maxUpload, minLatencyMillis, maxLatencyMillis, churnPerSecond, randomSeed);
+
+        long wallStart = System.nanoTime();
+        initialLeechersLeft = initialPeers - initialSeeds;
+        for (int i = 0; i < initialPeers; i++) {
+            join(i < initialSeeds);
+        }
+        if (churnPerSecond > 0) {
+            scheduleChurn();
+        }
+
+        long endTime = (long) (maxSeconds * NANOS_PER_SECOND);
+        while (!events.isEmpty() && !finished()) {
+            Event event = events.poll();
+            if (event.time > endTime) {
+                break;
+            }
+            now = event.time;
+            eventCount++;
+            event.action.run();
+        }
+        report(out, (System.nanoTime() - wallStart) / 1e9);
+    }
+
+    /**
+     * Without churn the run ends once every live peer has the file
+     */
+    private boolean finished() {
+        if (churnPerSecond > 0) {
+            return false;
+        }
+        for (SimPeer peer : livePeers) {
+            if (peer.completedAt < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void schedule(long delayNanos, Runnable action) {
+        events.add(new Event(now + delayNanos, sequence++, action));
+    }
+
+    private void schedulePeriodic(SimPeer peer, long periodNanos, long firstDelayNanos, Runnable action) {
+        schedule(firstDelayNanos, () -> {
+            if (peer.alive) {
+                action.run();
+                schedulePeriodic(peer, periodNanos, periodNanos, action);
+            }
+        });
+    }
+
+    // Membership
+
+    private SimPeer join(boolean seed) {
+        SimPeer peer = new SimPeer(nextPeerId++, seed,
+                                   minUpload + (long) (random.nextDouble() * (maxUpload - minUpload)),
+                                   (minLatencyMillis + (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis)))
+                                           * 1_000_000L);
+        // Connect to random live peers, as a new peer would after asking a tracker
+        List<SimPeer> candidates = new ArrayList<>(livePeers);
+        Collections.shuffle(candidates, random);
+        for (int i = 0; i < Math.min(degree, candidates.size()); i++) {
+            connect(peer, candidates.get(i));
+        }
+        livePeers.add(peer);
+        allPeers.add(peer);
+
+        // Stagger the timers so peers do not all choke in the same instant
+        long unchoke = config.getUnchokingInterval() * NANOS_PER_SECOND;
+        long optimistic = config.getOptimisticUnchokingInterval() * NANOS_PER_SECOND;
+        schedulePeriodic(peer, unchoke, (long) (random.nextDouble() * unchoke), () -> chokeRound(peer));
+        schedulePeriodic(peer, optimistic, (long) (random.nextDouble() * optimistic), () -> optimisticRound(peer));
+        return peer;
+    }
+
+    private void connect(SimPeer a, SimPeer b) {
+        Link ab = new Link(a, b);
+        Link ba = new Link(b, a);
+        ab.reverse = ba;
+        ba.reverse = ab;
+        a.links.put(b.id, ab);
+        b.links.put(a.id, ba);
+        sendBitfield(ab);
+        sendBitfield(ba);
+    }
+
+    private void sendBitfield(Link link) {
+        if (link.owner.have.cardinality() == 0) {
+            return;
+        }
+        long[] words = link.owner.have.snapshot();
+        send(link, remote -> {
+            remote.peerBitfield.or(words);
+            remote.owner.picker.addPeer(remote.peerBitfield);
+            updateInterest(remote);
+            fillRequests(remote);
+        });
+    }
+
+    private void depart(SimPeer peer) {
+        if (!peer.alive) {
+            return;
+        }
+        peer.alive = false;
+        livePeers.remove(peer);
+        if (!peer.initialSeed && peer.joinedAt == 0 && peer.completedAt < 0) {
+            initialLeechersLeft--;
+            checkInitialSwarm();
+        }
+        for (Link link : peer.links.values()) {
+            link.open = false;
+            link.reverse.open = false;
+            // The neighbor sees the connection drop, as in peerProcess.connectionClosed
+            SimPeer neighbor = link.remote;
+            neighbor.links.remove(peer.id);
+            neighbor.picker.removePeer(link.reverse.peerBitfield);
+            if (neighbor.optimistic != null && neighbor.optimistic == peer.id) {
+                neighbor.optimistic = null;
+            }
+            releaseRequests(link.reverse);
+        }
+        peer.links.clear();
+        peer.uploads.clear();
+    }
+
+    private void scheduleChurn() {
+        long delay = (long) (-Math.log(1 - random.nextDouble()) / churnPerSecond * NANOS_PER_SECOND);
+        schedule(delay, () -> {
+            List<SimPeer> leechers = new ArrayList<>();
+            for (SimPeer peer : livePeers) {
+                if (!peer.initialSeed) {
+                    leechers.add(peer);
+                }
+            }
+            if (!leechers.isEmpty()) {
+                depart(leechers.get(random.nextInt(leechers.size())));
+                join(false);
+            }
+            scheduleChurn();
+        });
+    }
+
+    // Choking, using the same selection code as peerProcess
+
+    private void chokeRound(SimPeer peer) {
+        List<Link> interested = new ArrayList<>();
+        for (Link link : peer.links.values()) {
+            if (link.peerInterested) {
+                interested.add(link);
+            }
+        }
+        if (interested.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> preferred = peerProcess.selectPreferredNeighbors(interested, config.getNumberOfPreferredNeighbors(),
+                                                                      peer.have.isFull(), random);
+        for (Link link : peer.links.values()) {
+            boolean unchoke = preferred.contains(link.remote.id)
+                    || (peer.optimistic != null && peer.optimistic == link.remote.id);
+            setChoked(link, !unchoke);
+        }
+        peer.preferred = preferred;
+        for (Link link : peer.links.values()) {
+            link.downloadRate = 0;
+        }
+    }
+
+    private void optimisticRound(SimPeer peer) {
+        Link selected = peerProcess.selectOptimisticNeighbor(peer.links.values(), peer.preferred, random);
+        if (selected == null) {
+            peer.optimistic = null;
+            return;
+        }
+        if (peer.optimistic == null || peer.optimistic != selected.remote.id) {
+            if (peer.optimistic != null && !peer.preferred.contains(peer.optimistic)) {
+                Link old = peer.links.get(peer.optimistic);
+                if (old != null) {
+                    setChoked(old, true);
+                }
+            }
+            peer.optimistic = selected.remote.id;
+            setChoked(selected, false);
+        }
+    }
+
+    private void setChoked(Link link, boolean choke) {
+        if (link.peerChoked == choke) {
+            return;
+        }
+        link.peerChoked = choke;
+        send(link, remote -> {
+            remote.choked = choke;
+            if (choke) {
+                releaseRequests(remote);
+            } else {
+                fillRequests(remote);
+            }
+        });
+    }
+
+    // Requests and interest, mirroring peerProcess
+
+    private void updateInterest(Link link) {
+        boolean interested = link.peerBitfield.hasAnyNotIn(link.owner.have);
+        if (interested != link.interested) {
+            link.interested = interested;
+            send(link, remote -> remote.peerInterested = interested);
+        }
+    }
+
+    private void fillRequests(Link link) {
+        if (link.choked || !link.open) {
+            return;
+        }
+        SimPeer peer = link.owner;
+        while (link.requests.hasRoom()) {
+            long block = peer.assembler.nextBlock(link.peerBitfield);
+            if (block == -1 && config.useEndGame()) {
+                block = peer.assembler.nextEndGameBlock(link.peerBitfield, link.requests);
+                if (block != -1) {
+                    peer.endGame = true;
+                }
+            }
+            if (block == -1) {
+                break;
+            }
+            int pieceIndex = RequestQueue.pieceOf(block);
+            int offset = RequestQueue.offsetOf(block);
+            int length = peer.assembler.getBlockLength(pieceIndex, offset);
+            link.requests.add(block);
+            send(link, remote -> requestReceived(remote, pieceIndex, offset, length));
+        }
+    }
+
+    private void releaseRequests(Link link) {
+        List<Long> released = link.requests.clear();
+        for (long block : released) {
+            link.owner.assembler.release(RequestQueue.pieceOf(block), RequestQueue.offsetOf(block));
+        }
+        if (!released.isEmpty()) {
+            for (Link other : link.owner.links.values()) {
+                fillRequests(other);
+            }
+        }
+    }
+
+    private void requestReceived(Link link, int pieceIndex, int offset, int length) {
+        SimPeer peer = link.owner;
+        if (link.peerChoked || !peer.have.get(pieceIndex)) {
+            return;
+        }
+        peer.uploads.add(new Upload(link, pieceIndex, offset, length));
+        if (!peer.uploading) {
+            startUpload(peer);
+        }
+    }
+
+    /**
+     * Serve the next queued request at the peer's upload bandwidth
+     */
+    private void startUpload(SimPeer peer) {
+        Upload upload;
+        do {
+            upload = peer.uploads.poll();
+        } while (upload != null && (upload.cancelled || !upload.link.open || upload.link.peerChoked));
+        if (upload == null) {
+            peer.uploading = false;
+            return;
+        }
+        peer.uploading = true;
+        Upload sending = upload;
+        long duration = Math.max(1, sending.length * NANOS_PER_SECOND / peer.uploadBytesPerSecond);
+        schedule(duration, () -> {
+            if (!peer.alive) {
+                return;
+            }
+            peer.uploadedBytes += sending.length;
+            send(sending.link, remote -> pieceReceived(remote, sending.pieceIndex, sending.offset, sending.length));
+            startUpload(peer);
+        });
+    }
+
+    private void cancelReceived(Link link, int pieceIndex, int offset) {
+        for (Upload upload : link.owner.uploads) {
+            if (upload.link == link && upload.pieceIndex == pieceIndex && upload.offset == offset) {
+                upload.cancelled = true;
+            }
+        }
+    }
+
+    private void pieceReceived(Link link, int pieceIndex, int offset, int length) {
+        SimPeer peer = link.owner;
+        link.requests.complete(RequestQueue.blockKey(pieceIndex, offset), length);
+
+        if (!peer.have.get(pieceIndex)) {
+            link.downloadRate += length;
+            byte[] piece = peer.assembler.blockReceived(pieceIndex, offset, blockData(length));
+            if (peer.endGame) {
+                cancelDuplicates(link, pieceIndex, offset);
+            }
+            if (piece != null) {
+                peer.picker.completed(pieceIndex);
+                pieceStored(peer, pieceIndex);
+            }
+        }
+        fillRequests(link);
+    }
+
+    private void cancelDuplicates(Link source, int pieceIndex, int offset) {
+        long block = RequestQueue.blockKey(pieceIndex, offset);
+        for (Link link : source.owner.links.values()) {
+            if (link != source && link.requests.remove(block)) {
+                source.owner.assembler.release(pieceIndex, offset);
+                send(link, remote -> cancelReceived(remote, pieceIndex, offset));
+            }
+        }
+    }
+
+    private void pieceStored(SimPeer peer, int pieceIndex) {
+        peer.have.set(pieceIndex);
+        for (Link link : peer.links.values()) {
+            send(link, remote -> haveReceived(remote, pieceIndex));
+            if (link.interested && link.peerBitfield.get(pieceIndex)) {
+                updateInterest(link);
+            }
+        }
+        if (peer.have.isFull()) {
+            peer.completedAt = now;
+            if (!peer.initialSeed && peer.joinedAt == 0) {
+                initialLeechersLeft--;
+                checkInitialSwarm();
+            }
+            if (lingerSeconds >= 0) {
+                schedule((long) (lingerSeconds * NANOS_PER_SECOND), () -> depart(peer));
+            }
+        }
+    }
+
+    private void haveReceived(Link link, int pieceIndex) {
+        if (link.peerBitfield.set(pieceIndex)) {
+            link.owner.picker.addPiece(pieceIndex);
+            if (!link.interested && !link.owner.have.get(pieceIndex)) {
+                updateInterest(link);
+            }
+            fillRequests(link);
+        }
+    }
+
+    private void checkInitialSwarm() {
+        if (initialLeechersLeft == 0 && initialSwarmDoneAt < 0) {
+            initialSwarmDoneAt = now;
+        }
+    }
+
+    /**
+     * Deliver a message to the other end of a link after the link latency, unless it closes first
+     */
+    private void send(Link link, Consumer<Link> handler) {
+        schedule(link.owner.latencyNanos + link.remote.latencyNanos, () -> {
+            if (link.reverse.open) {
+                handler.accept(link.reverse);
+            }
+        });
+    }
+
+    private byte[] blockData(int length) {
+        return blockData.computeIfAbsent(length, byte[]::new);
+    }
+
+    private void report(PrintStream out, double wallSeconds) {
+        out.printf("Virtual time %.2f s; %d events in %.2f s of wall clock (%.0f events/s)%n",
+                   now / 1e9, eventCount, wallSeconds, eventCount / Math.max(wallSeconds, 1e-9));
+        if (initialSwarmDoneAt >= 0) {
+            out.printf("Initial swarm complete at %.2f s%n", initialSwarmDoneAt / 1e9);
+        } else {
+            out.printf("Initial swarm not complete: %d leechers still downloading%n", initialLeechersLeft);
+        }
+
+        List<Double> times = new ArrayList<>();
+        long seedUpload = 0;
+        long totalUpload = 0;
+        int incomplete = 0;
+        for (SimPeer peer : allPeers) {
+            totalUpload += peer.uploadedBytes;
+            if (peer.initialSeed) {
+                seedUpload += peer.uploadedBytes;
+            } else if (peer.completedAt >= 0) {
+                times.add((peer.completedAt - peer.joinedAt) / 1e9);
+            } else if (peer.alive) {
+                incomplete++;
+            }
+        }
+        if (!times.isEmpty()) {
+            Collections.sort(times);
+            double sum = 0;
+            for (double time : times) {
+                sum += time;
+            }
+            out.printf("Download time over %d peers: mean %.2f s, p50 %.2f s, p90 %.2f s, p99 %.2f s, max %.2f s%n",
+                       times.size(), sum / times.size(), percentile(times, 0.5), percentile(times, 0.9),
+                       percentile(times, 0.99), times.get(times.size() - 1));
+        }
+        out.printf("Peers: %d joined, %d still downloading, %d left%n",
+                   allPeers.size(), incomplete, allPeers.size() - livePeers.size());
+        out.printf("Uploaded %.1f MB, %.1f%% by the initial seeds%n",
+                   totalUpload / 1e6, totalUpload == 0 ? 0 : 100.0 * seedUpload / totalUpload);
+    }
+
+    private static double percentile(List<Double> sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    /**
+     * Something that happens at a point in virtual time; ties run in the order they were scheduled
+     */
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private class SimPeer {
+        final int id;
+        final boolean initialSeed;
+        final long uploadBytesPerSecond;
+        final long latencyNanos;
+        final long joinedAt;
+        final AtomicBitfield have;
+        final PiecePicker picker;
+        final PieceAssembler assembler;
+        final Map<Integer, Link> links = new LinkedHashMap<>();
+        final ArrayDeque<Upload> uploads = new ArrayDeque<>();
+        Set<Integer> preferred = Collections.emptySet();
+        Integer optimistic;
+        boolean uploading;
+        boolean endGame;
+        boolean alive = true;
+        long completedAt = -1;
+        long uploadedBytes;
+
+        SimPeer(int id, boolean seed, long uploadBytesPerSecond, long latencyNanos) {
+            this.id = id;
+            this.initialSeed = seed;
+            this.uploadBytesPerSecond = uploadBytesPerSecond;
+            this.latencyNanos = latencyNanos;
+            this.joinedAt = now;
+            int numberOfPieces = config.getNumberOfPieces();
+            this.have = new AtomicBitfield(numberOfPieces);
+            if (seed) {
+                for (int i = 0; i < numberOfPieces; i++) {
+                    have.set(i);
+                }
+                completedAt = now;
+            }
+            this.picker = new PiecePicker(numberOfPieces, have, new Random(random.nextLong()));
+            this.assembler = new PieceAssembler(picker, config.getPieceSize(),
+                                                config.useBlockMode() ? config.getBlockSize() : 0,
+                                                config.getFileSize());
+        }
+    }
+
+    /**
+     * One end of a connection, seen from its owner
+     */
+    private class Link implements Neighbor {
+        final SimPeer owner;
+        final SimPeer remote;
+        Link reverse;
+        final AtomicBitfield peerBitfield;
+        final RequestQueue requests;
+        long downloadRate;     // Bytes from remote in the current unchoking interval
+        boolean open = true;
+        boolean choked = true;       // Remote chokes us
+        boolean interested;          // We are interested in remote
+        boolean peerChoked = true;   // We choke remote
+        boolean peerInterested;      // Remote is interested in us
+
+        Link(SimPeer owner, SimPeer remote) {
+            this.owner = owner;
+            this.remote = remote;
+            this.peerBitfield = new AtomicBitfield(config.getNumberOfPieces());
+            this.requests = new RequestQueue(config.getRequestQueueDepth(), config.getMaxRequestQueueDepth(),
+                                             config.getRequestTimeoutMillis(), config.getMinRequestTimeoutMillis(),
+                                             () -> now);
+        }
+
+        @Override public int getPeerId() { return remote.id; }
+        @Override public long getDownloadRate() { return downloadRate; }
+        @Override public boolean peerIsInterested() { return peerInterested; }
+        @Override public boolean peerIsChoked() { return peerChoked; }
+    }
+
+    private static class Upload {
+        final Link link;
+        final int pieceIndex;
+        final int offset;
+        final int length;
+        boolean cancelled;
+
+        Upload(Link link, int pieceIndex, int offset, int length) {
+            this.link = link;
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
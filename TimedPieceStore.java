@@ -0,0 +1,46 @@
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * PieceStore decorator that records write and sync latency in microseconds
+ */
+public class TimedPieceStore implements PieceStore {
+    private final PieceStore store;
+    private final LatencyHistogram writeLatency;
+    private final LatencyHistogram syncLatency;
+
+    public TimedPieceStore(PieceStore store, LatencyHistogram writeLatency, LatencyHistogram syncLatency) {
+        this.store = store;
+        this.writeLatency = writeLatency;
+        this.syncLatency = syncLatency;
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        store.read(position, buffer, offset, length);
+    }
+
+    @Override
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        store.write(position, data, offset, length);
+        writeLatency.record((System.nanoTime() - start) / 1000);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return store.transferTo(position, count, target);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        long start = System.nanoTime();
+        store.sync();
+        syncLatency.record((System.nanoTime() - start) / 1000);
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for large numbers of short deadlines.
+ *
+ * Deadlines are rounded up to a tick and hashed into one of a fixed number of
+ * slots, so scheduling is O(1) and each tick only looks at one slot. Entries
+ * further out than one rotation stay in their slot until their tick comes round.
+ * There is no cancel; callers check whether an expired item still matters.
+ */
+public class TimerWheel<T> {
+    private final long tickNanos;
+    private final long startNanos;
+    private final List<Entry<T>>[] slots;
+    private final int mask;
+    private long currentTick; // Next tick to be expired
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int numberOfSlots) {
+        int size = Integer.highestOneBit(Math.max(1, numberOfSlots - 1)) << 1;
+        this.tickNanos = Math.max(1, tickMillis) * 1_000_000L;
+        this.startNanos = System.nanoTime();
+        this.slots = new List[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Schedule an item to expire at the given System.nanoTime() deadline
+     */
+    public synchronized void schedule(T item, long deadlineNanos) {
+        long elapsed = deadlineNanos - startNanos;
+        long tick = Math.max(currentTick, (elapsed + tickNanos - 1) / tickNanos);
+        slots[(int) (tick & mask)].add(new Entry<>(item, tick));
+    }
+
+    /**
+     * Advance the wheel to now and return every item whose deadline has passed
+     */
+    public synchronized List<T> expire(long nowNanos) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+        List<T> expired = new ArrayList<>();
+        for (; currentTick <= nowTick; currentTick++) {
+            Iterator<Entry<T>> it = slots[(int) (currentTick & mask)].iterator();
+            while (it.hasNext()) {
+                Entry<T> entry = it.next();
+                if (entry.tick <= currentTick) {
+                    expired.add(entry.item);
+                    it.remove();
+                }
+            }
+        }
+        return expired;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (List<Entry<T>> slot : slots) {
+            size += slot.size();
+        }
+        return size;
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package p2p;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BITFIELD encode/decode: the word-at-a-time codec in Message against the
+ * previous bit-by-bit loop, kept here as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldCodecBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int numberOfPieces;
+
+    private AtomicBitfield bitfield;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        bitfield = new AtomicBitfield(numberOfPieces);
+        for (int i = 0; i < numberOfPieces; i++) {
+            if (random.nextBoolean()) {
+                bitfield.set(i);
+            }
+        }
+        payload = Message.createBitfieldMessage(bitfield, numberOfPieces).getPayload();
+    }
+
+    @Benchmark
+    public byte[] encodeWords() {
+        return Message.createBitfieldMessage(bitfield, numberOfPieces).getPayload();
+    }
+
+    @Benchmark
+    public byte[] encodeBits() {
+        byte[] bytes = new byte[(numberOfPieces + 7) / 8];
+        for (int i = 0; i < numberOfPieces; i++) {
+            if (bitfield.get(i)) {
+                bytes[i / 8] |= (1 << (7 - (i % 8)));
+            }
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public AtomicBitfield decodeWords() {
+        return Message.parseBitfieldMessage(payload, numberOfPieces);
+    }
+
+    @Benchmark
+    public AtomicBitfield decodeBits() {
+        AtomicBitfield decoded = new AtomicBitfield(numberOfPieces);
+        for (int i = 0; i < numberOfPieces; i++) {
+            int byteIndex = i / 8;
+            if (byteIndex < payload.length && (payload[byteIndex] & (1 << (7 - (i % 8)))) != 0) {
+                decoded.set(i);
+            }
+        }
+        return decoded;
+    }
+}
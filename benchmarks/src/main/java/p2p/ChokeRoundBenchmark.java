@@ -0,0 +1,66 @@
+package p2p;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Preferred-neighbor selection from one choke round, leeching (sorted by
+ * download rate) and seeding (shuffled). The sample configs have 5 neighbors
+ * and NumberOfPreferredNeighbors 3; larger neighbor counts show the scaling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChokeRoundBenchmark {
+    private static final int NUMBER_OF_PIECES = 1484;
+    private static final int PREFERRED_NEIGHBORS = 3;
+
+    @Param({"5", "32", "256"})
+    int neighbors;
+
+    @Param({"false", "true"})
+    boolean seeding;
+
+    private List<PeerConnection> interested;
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException {
+        random = new Random(42);
+        interested = new ArrayList<>();
+        for (int i = 0; i < neighbors; i++) {
+            PeerConnection conn = new PeerConnection(1001, 2000 + i, (Socket) null, null, null,
+                                                     NUMBER_OF_PIECES, null, null);
+            conn.setPeerIsInterested(true);
+            conn.addDownloadRate(random.nextInt(1 << 20));
+            interested.add(conn);
+        }
+    }
+
+    @Benchmark
+    public Set<Integer> selectPreferredNeighbors() {
+        // Selection reorders its list, so each round starts from the same order
+        return peerProcess.selectPreferredNeighbors(new ArrayList<>(interested), PREFERRED_NEIGHBORS, seeding,
+                                                    random);
+    }
+}
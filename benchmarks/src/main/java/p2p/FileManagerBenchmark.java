@@ -0,0 +1,111 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FileManager.readPiece and writePiece from several threads at once, for each
+ * storage backend. The file matches the large sample Common.cfg (24301474
+ * bytes in 16384-byte pieces). writePiece forces every piece to disk, so its
+ * numbers depend heavily on the device under the temp directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileManagerBenchmark {
+    private static final long FILE_SIZE = 24301474L;
+    private static final int PIECE_SIZE = 16384;
+
+    @Param({"raf", "mmap"})
+    String backend;
+
+    private File directory;
+    private FileManager fileManager;
+    private int numberOfPieces;
+    private byte[] pieceData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("p2p-bench").toFile();
+        File file = new File(directory, "thefile");
+        Random random = new Random(42);
+        byte[] chunk = new byte[1 << 20];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < FILE_SIZE; written += chunk.length) {
+                random.nextBytes(chunk);
+                raf.write(chunk, 0, (int) Math.min(chunk.length, FILE_SIZE - written));
+            }
+        }
+        fileManager = new FileManager(directory.getPath(), "thefile", PIECE_SIZE, FILE_SIZE, true, backend);
+        numberOfPieces = fileManager.getTotalNumberOfPieces();
+        pieceData = new byte[PIECE_SIZE];
+        random.nextBytes(pieceData);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileManager.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] readPiece() throws IOException {
+        return fileManager.readPiece(ThreadLocalRandom.current().nextInt(numberOfPieces));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void writePiece() throws IOException {
+        // The last piece is shorter; keep to full ones so the data always fits
+        fileManager.writePiece(ThreadLocalRandom.current().nextInt(numberOfPieces - 1), pieceData);
+    }
+
+    /**
+     * Three uploaders reading while one downloader writes, as in a busy peer
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public byte[] mixedRead() throws IOException {
+        return fileManager.readPiece(ThreadLocalRandom.current().nextInt(numberOfPieces));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedWrite() throws IOException {
+        fileManager.writePiece(ThreadLocalRandom.current().nextInt(numberOfPieces - 1), pieceData);
+    }
+}
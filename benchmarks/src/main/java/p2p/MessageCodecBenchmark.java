@@ -0,0 +1,119 @@
+package p2p;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode (factory method plus toByteArray) and decode (readMessage plus the
+ * payload parser) for every message type. Sizes follow the large sample
+ * Common.cfg: 16384-byte pieces of a 24301474-byte file, so 1484 pieces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+    private static final int PIECE_SIZE = 16384;
+    private static final int NUMBER_OF_PIECES = 1484;
+    private static final int BLOCK_SIZE = 4096;
+
+    @Param({"choke", "unchoke", "interested", "not_interested", "have", "bitfield",
+            "request", "block_request", "piece", "block_piece", "cancel"})
+    String type;
+
+    private AtomicBitfield bitfield;
+    private byte[] pieceData;
+    private byte[] blockData;
+    private byte[] encoded;
+    private int pieceIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        bitfield = new AtomicBitfield(NUMBER_OF_PIECES);
+        for (int i = 0; i < NUMBER_OF_PIECES; i++) {
+            if (random.nextBoolean()) {
+                bitfield.set(i);
+            }
+        }
+        pieceData = new byte[PIECE_SIZE];
+        random.nextBytes(pieceData);
+        blockData = new byte[BLOCK_SIZE];
+        random.nextBytes(blockData);
+        pieceIndex = NUMBER_OF_PIECES / 2;
+        encoded = encode();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return create().toByteArray();
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        Message message = Message.readMessage(new ByteArrayInputStream(encoded));
+        byte[] payload = message.getPayload();
+        switch (type) {
+            case "have":
+                return Message.parseHaveMessage(payload);
+            case "bitfield":
+                return Message.parseBitfieldMessage(payload, NUMBER_OF_PIECES);
+            case "request":
+                return Message.parseRequestMessage(payload);
+            case "block_request":
+            case "cancel":
+                return Message.parseBlockRequestMessage(payload);
+            case "piece":
+                return Message.parsePieceMessage(payload);
+            case "block_piece":
+                return Message.parseBlockPieceMessage(payload);
+            default:
+                return message;
+        }
+    }
+
+    private Message create() {
+        switch (type) {
+            case "choke":
+                return new Message(Message.CHOKE, null);
+            case "unchoke":
+                return new Message(Message.UNCHOKE, null);
+            case "interested":
+                return new Message(Message.INTERESTED, null);
+            case "not_interested":
+                return new Message(Message.NOT_INTERESTED, null);
+            case "have":
+                return Message.createHaveMessage(pieceIndex);
+            case "bitfield":
+                return Message.createBitfieldMessage(bitfield, NUMBER_OF_PIECES);
+            case "request":
+                return Message.createRequestMessage(pieceIndex);
+            case "block_request":
+                return Message.createBlockRequestMessage(pieceIndex, BLOCK_SIZE, BLOCK_SIZE);
+            case "piece":
+                return Message.createPieceMessage(pieceIndex, pieceData);
+            case "block_piece":
+                return Message.createBlockPieceMessage(pieceIndex, BLOCK_SIZE, blockData);
+            case "cancel":
+                return Message.createBlockCancelMessage(pieceIndex, BLOCK_SIZE, BLOCK_SIZE);
+            default:
+                throw new IllegalArgumentException("Unknown message type: " + type);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PiecePicker.pick against the uniform random choice the peer used before it,
+ * as the piece count and our own completion grow. 133 and 1484 pieces are the two sample
+ * Common.cfg files; the larger counts show how selection scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PieceSelectionBenchmark {
+    @Param({"133", "1484", "16384", "131072"})
+    int numberOfPieces;
+
+    @Param({"0.1", "0.5", "0.95"})
+    double completion;
+
+    private File directory;
+    private FileManager fileManager;
+    private PeerConnection connection;
+    private PiecePicker piecePicker;
+    private Random pickRandom;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // One-byte pieces keep the backing file small at every piece count
+        directory = Files.createTempDirectory("p2p-bench").toFile();
+        fileManager = new FileManager(directory.getPath(), "thefile", 1, numberOfPieces, false);
+        connection = new PeerConnection(1001, 1002, (Socket) null, null, null, numberOfPieces, null, fileManager);
+
+        Random random = new Random(42);
+        pickRandom = new Random(7);
+        AtomicBitfield have = fileManager.getBitfield();
+        for (int i = 0; i < numberOfPieces; i++) {
+            if (random.nextDouble() < completion) {
+                have.set(i);
+            }
+            if (random.nextBoolean()) {
+                connection.updatePeerBitfield(i);
+            }
+        }
+
+        piecePicker = new PiecePicker(numberOfPieces, have);
+        piecePicker.addPeer(connection.getPeerBitfield());
+        for (int peer = 0; peer < 4; peer++) {
+            AtomicBitfield other = new AtomicBitfield(numberOfPieces);
+            for (int i = 0; i < numberOfPieces; i++) {
+                if (random.nextBoolean()) {
+                    other.set(i);
+                }
+            }
+            piecePicker.addPeer(other);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileManager.close();
+        new File(directory, "thefile").delete();
+        directory.delete();
+    }
+
+    /**
+     * Baseline: a uniformly random piece the peer has and we lack
+     */
+    @Benchmark
+    public int randomInterestingPiece() {
+        AtomicBitfield have = fileManager.getBitfield();
+        AtomicBitfield peer = connection.getPeerBitfield();
+        int count = peer.countNotIn(have);
+        return count == 0 ? -1 : peer.nthNotIn(have, pickRandom.nextInt(count));
+    }
+
+    /**
+     * Rarest-first pick, returning the piece so the next call sees the same state
+     */
+    @Benchmark
+    public int rarestFirstPick() {
+        int piece = piecePicker.pick(connection.getPeerBitfield());
+        if (piece != -1) {
+            piecePicker.release(piece);
+        }
+        return piece;
+    }
+}
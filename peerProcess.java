@@ -1,13 +1,20 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Main peer process for P2P file sharing
  */
 public class peerProcess {
+    private static final long REQUEST_TIMER_TICK_MILLIS = 100;
+
     private int peerId;
+    private final String workingDir; // Holds Common.cfg, PeerInfo.cfg, logs and peer_[ID] directories
+    private final CountDownLatch listening; // Released once the peer accepts connections
     private CommonConfig commonConfig;
     private List<PeerInfo> allPeers;
     private PeerInfo myPeerInfo;
@@ -15,30 +22,53 @@ public class peerProcess {
     private Logger logger;
     private Map<Integer, PeerConnection> connections;
     private ServerSocket serverSocket;
+    private NioTransport nioTransport;
     private ExecutorService executorService;
     private volatile boolean running;
     private int numberOfPreferredNeighbors;
     private int unchokingInterval;
     private int optimisticUnchokingInterval;
-    private Set<Integer> preferredNeighbors;
-    private Integer optimisticallyUnchokedNeighbor;
+    private volatile Set<Integer> preferredNeighbors; // Replaced wholesale, never modified in place
+    private volatile Integer optimisticallyUnchokedNeighbor;
     private ScheduledExecutorService scheduler;
-    private Map<Integer, Integer> requestedPieces; // peerId -> pieceIndex
+    private Map<Integer, Integer> pieceSources; // pieceIndex -> peerId, while queued for writing
+    private PiecePicker piecePicker;
+    private PieceAssembler pieceAssembler;
+    private volatile boolean endGame; // Set once duplicate requests have been sent
+    private volatile boolean connectedOnce; // Peers that leave are dropped from connections
+    private int extensions; // Offered in our handshakes, see Extensions
+    private TimerWheel<PendingRequest> requestTimers;
+    private Metrics metrics;
+    private LatencyHistogram requestRtt;
+    private Metrics.Meter piecesDownloaded;
+    private LongAdder havesSent;   // HAVE messages sent in batches
+    private LongAdder haveBatches; // Writes those batches took
+    private StatsServer statsServer;
 
     public peerProcess(int peerId) {
+        this(peerId, System.getProperty("user.dir"));
+    }
+
+    public peerProcess(int peerId, String workingDir) {
         this.peerId = peerId;
+        this.workingDir = workingDir;
+        this.listening = new CountDownLatch(1);
         this.connections = new ConcurrentHashMap<>();
         this.running = true;
         this.preferredNeighbors = new HashSet<>();
-        this.executorService = Executors.newCachedThreadPool();
-        this.scheduler = Executors.newScheduledThreadPool(2);
-        this.requestedPieces = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newScheduledThreadPool(3);
+        this.pieceSources = new ConcurrentHashMap<>();
+        this.requestTimers = new TimerWheel<>(REQUEST_TIMER_TICK_MILLIS, 512);
+        this.metrics = new Metrics();
+        this.requestRtt = metrics.histogram("request.rtt_us");
+        this.piecesDownloaded = metrics.meter("pieces.downloaded");
+        this.havesSent = metrics.counter("have.sent");
+        this.haveBatches = metrics.counter("have.batches");
     }
 
     public void start() {
         try {
             // Read configuration files
-            String workingDir = System.getProperty("user.dir");
             String commonConfigPath = workingDir + File.separator + "Common.cfg";
             String peerInfoPath = workingDir + File.separator + "PeerInfo.cfg";
             
@@ -62,32 +92,49 @@ public class peerProcess {
             numberOfPreferredNeighbors = commonConfig.getNumberOfPreferredNeighbors();
             unchokingInterval = commonConfig.getUnchokingInterval();
             optimisticUnchokingInterval = commonConfig.getOptimisticUnchokingInterval();
+            executorService = createExecutor();
+            extensions = commonConfig.useProtocolExtensions() ? Extensions.SUPPORTED : 0;
             
             // Initialize file manager
             String peerDirectory = workingDir + File.separator + "peer_" + peerId;
             fileManager = new FileManager(peerDirectory, commonConfig.getFileName(), 
                                         commonConfig.getPieceSize(), commonConfig.getFileSize(), 
-                                        myPeerInfo.hasFile());
+                                        myPeerInfo.hasFile(), commonConfig.getStorageBackend());
+            fileManager.enableMetrics(metrics);
+            fileManager.startWriteBehind(new StoredPieceListener(), commonConfig.getDurabilityMode(),
+                                         commonConfig.getSyncBatchPieces(), commonConfig.getSyncBatchBytes(),
+                                         commonConfig.getSyncIntervalMillis());
+            piecePicker = new PiecePicker(commonConfig.getNumberOfPieces(), fileManager.getBitfield());
+            pieceAssembler = new PieceAssembler(piecePicker, commonConfig.getPieceSize(),
+                                                commonConfig.useBlockMode() ? commonConfig.getBlockSize() : 0,
+                                                commonConfig.getFileSize());
             
             // Initialize logger
             String logPath = workingDir + File.separator + "log_peer_" + peerId + ".log";
-            logger = new Logger(peerId, logPath);
+            String journalPath = commonConfig.useEventJournal()
+                    ? workingDir + File.separator + "journal_peer_" + peerId + ".bin" : null;
+            logger = new Logger(peerId, logPath, commonConfig.getLogBufferSize(), commonConfig.getLogOverflowPolicy(),
+                                journalPath);
             
             System.out.println("Peer " + peerId + " starting...");
             System.out.println("Has file: " + myPeerInfo.hasFile());
             System.out.println("Listening on: " + myPeerInfo.getHostName() + ":" + myPeerInfo.getListeningPort());
             
-            // Start server socket to accept incoming connections
-            startServer();
-            
-            // Connect to peers that started before this peer
-            connectToPreviousPeers();
-            
-            // Wait a bit for all connections to be established
-            Thread.sleep(2000);
-            
-            // Start message handlers for each connection
-            startMessageHandlers();
+            if (commonConfig.useNioTransport()) {
+                // Selector threads accept, connect and read for every connection
+                startNioTransport();
+                listening.countDown();
+            } else {
+                // Start server socket to accept incoming connections
+                startServer();
+                listening.countDown();
+                
+                // Connect to peers that started before this peer
+                connectToPreviousPeers();
+                
+                // Wait a bit for all connections to be established
+                Thread.sleep(2000);
+            }
             
             // Start choking/unchoking scheduler
             startChokingScheduler();
@@ -95,8 +142,23 @@ public class peerProcess {
             // Start optimistic unchoking scheduler
             startOptimisticUnchokingScheduler();
             
-            // Start piece request handler (for downloading)
-            startPieceRequestHandler();
+            // Expire requests that peers never answer
+            startRequestTimer();
+            
+            if (commonConfig.getHaveBatchMillis() > 0) {
+                startHaveFlusher(commonConfig.getHaveBatchMillis());
+            }
+            
+            registerGauges();
+            if (commonConfig.getMetricsIntervalSeconds() > 0) {
+                startMetricsDump(workingDir + File.separator + "metrics_peer_" + peerId + ".txt");
+            }
+            if (commonConfig.getStatsPort() > 0) {
+                // Offset by position in PeerInfo.cfg so peers sharing a host and Common.cfg do not collide
+                startStatsServer(commonConfig.getStatsPort() + allPeers.indexOf(myPeerInfo));
+            }
+            
+            // Requests are issued by fillRequests as unchoke, piece and have events arrive
             
             // Monitor for completion
             monitorCompletion();
@@ -107,8 +169,27 @@ public class peerProcess {
         }
     }
 
+    /**
+     * Executor for the accept loop, blocking readers and the completion monitor.
+     * Virtual threads let one peer hold thousands of blocking connections; they
+     * need JDK 21, so older JDKs fall back to platform threads.
+     */
+    private ExecutorService createExecutor() {
+        if (commonConfig.useVirtualThreads()) {
+            ExecutorService virtual = VirtualThreads.newPerTaskExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+            System.err.println("Virtual threads are not available on Java " + System.getProperty("java.version")
+                               + "; using platform threads");
+        }
+        return Executors.newCachedThreadPool();
+    }
+
     private void startServer() throws IOException {
-        serverSocket = new ServerSocket(myPeerInfo.getListeningPort());
+        // Channel-backed sockets so uploads can use FileChannel.transferTo
+        serverSocket = ServerSocketChannel.open().socket();
+        serverSocket.bind(new InetSocketAddress(myPeerInfo.getListeningPort()));
         executorService.submit(() -> {
             while (running) {
                 try {
@@ -141,24 +222,17 @@ public class peerProcess {
             }
             
             int otherPeerId = Message.parseHandshake(handshake);
+            int otherExtensions = Message.parseHandshakeExtensions(handshake);
             
             // Verify peer ID
-            PeerInfo otherPeer = null;
-            for (PeerInfo peer : allPeers) {
-                if (peer.getPeerId() == otherPeerId) {
-                    otherPeer = peer;
-                    break;
-                }
-            }
-            
-            if (otherPeer == null) {
+            if (findPeer(otherPeerId) == null) {
                 System.err.println("Unknown peer ID: " + otherPeerId);
                 socket.close();
                 return;
             }
             
             // Send handshake
-            byte[] myHandshake = Message.createHandshake(peerId);
+            byte[] myHandshake = Message.createHandshake(peerId, extensions);
             tempOut.write(myHandshake);
             tempOut.flush();
             
@@ -166,48 +240,15 @@ public class peerProcess {
             PeerConnection connection = new PeerConnection(peerId, otherPeerId, socket, 
                                           tempIn, tempOut, commonConfig.getNumberOfPieces(), 
                                           logger, fileManager);
+            connection.setPeerExtensions(otherExtensions);
             
             logger.logTcpConnectionReceived(otherPeerId);
             
-            // Exchange bitfields
-            if (fileManager.getNumberOfPieces() > 0) {
-                connection.sendBitfield(fileManager.getBitfield());
-            }
-            
-            // Receive bitfield if peer has pieces (with timeout)
-            try {
-                // Set a short timeout for bitfield
-                socket.setSoTimeout(5000);
-                connection.receiveBitfield();
-                socket.setSoTimeout(0); // Remove timeout
-            } catch (IOException e) {
-                // Peer may not have sent bitfield (has no pieces)
-                socket.setSoTimeout(0); // Remove timeout
-            }
-            
-            // Update interest
-            connection.updateInterest();
-            
-            connections.put(otherPeerId, connection);
-            
-            // Update interest
-            connection.updateInterest();
+            // Send our bitfield; the peer's bitfield is handled by the message loop
+            registerConnection(connection);
             
             // Start message handler for this connection
-            final PeerConnection conn = connection;
-            executorService.submit(() -> {
-                while (running) {
-                    try {
-                        Message message = conn.receiveMessage();
-                        handleMessage(conn, message);
-                    } catch (IOException e) {
-                        if (running) {
-                            System.err.println("Error receiving message from peer " + conn.getPeerId() + ": " + e.getMessage());
-                        }
-                        break;
-                    }
-                }
-            });
+            startReader(connection);
             
         } catch (IOException e) {
             System.err.println("Error handling incoming connection: " + e.getMessage());
@@ -220,13 +261,13 @@ public class peerProcess {
             if (peer.getPeerId() < peerId) {
                 // Connect to this peer
                 try {
-                    Socket socket = new Socket(peer.getHostName(), peer.getListeningPort());
+                    Socket socket = SocketChannel.open(new InetSocketAddress(peer.getHostName(), peer.getListeningPort())).socket();
                     PeerConnection connection = new PeerConnection(peerId, peer.getPeerId(), socket, 
                                                                   commonConfig.getNumberOfPieces(), 
                                                                   logger, fileManager);
                     
                     // Exchange handshakes
-                    connection.sendHandshake(peerId);
+                    connection.sendHandshake(peerId, extensions);
                     int receivedPeerId = connection.receiveHandshake();
                     
                     if (receivedPeerId != peer.getPeerId()) {
@@ -237,22 +278,11 @@ public class peerProcess {
                     
                     logger.logTcpConnectionMade(peer.getPeerId());
                     
-                    // Send bitfield if we have pieces
-                    if (fileManager.getNumberOfPieces() > 0) {
-                        connection.sendBitfield(fileManager.getBitfield());
-                    }
-                    
-                    // Receive bitfield if peer has pieces
-                    try {
-                        connection.receiveBitfield();
-                    } catch (IOException e) {
-                        // Peer may not have sent bitfield
-                    }
-                    
-                    // Update interest
-                    connection.updateInterest();
+                    // Send our bitfield; the peer's bitfield is handled by the message loop
+                    registerConnection(connection);
                     
-                    connections.put(peer.getPeerId(), connection);
+                    // Start message handler for this connection
+                    startReader(connection);
                     
                 } catch (ConnectException e) {
                     System.err.println("Could not connect to peer " + peer.getPeerId() + ": " + e.getMessage());
@@ -261,98 +291,317 @@ public class peerProcess {
         }
     }
 
-    private void startMessageHandlers() {
-        for (PeerConnection connection : connections.values()) {
-            final PeerConnection conn = connection;
-            executorService.submit(() -> {
-                while (running) {
-                    try {
-                        Message message = conn.receiveMessage();
-                        handleMessage(conn, message);
-                    } catch (IOException e) {
-                        if (running) {
-                            System.err.println("Error receiving message from peer " + conn.getPeerId() + ": " + e.getMessage());
-                        }
-                        break;
-                    }
+    /**
+     * Blocking reader loop for a single connection
+     */
+    private void startReader(PeerConnection conn) {
+        executorService.submit(() -> {
+            while (running) {
+                try {
+                    Message message = conn.receiveMessage();
+                    handleMessage(conn, message);
+                } catch (IOException e) {
+                    connectionClosed(conn, e);
+                    break;
                 }
-            });
+            }
+        });
+    }
+
+    /**
+     * Longest frame a peer may send: a block PIECE (type, index, offset and up to a whole piece),
+     * a full BITFIELD or a batched HAVE
+     */
+    static int maxMessageLength(int pieceSize, int numberOfPieces) {
+        int maxMessageLength = Math.max(pieceSize + 9, (numberOfPieces + 7) / 8 + 1);
+        return Math.max(maxMessageLength, 4 * Math.min(numberOfPieces, Message.MAX_HAVE_BATCH) + 1);
+    }
+
+    /**
+     * Start the selector based transport and connect to peers that started before this peer
+     */
+    private void startNioTransport() throws IOException {
+        int maxMessageLength = maxMessageLength(commonConfig.getPieceSize(), commonConfig.getNumberOfPieces());
+        nioTransport = new NioTransport(peerId, extensions, commonConfig.getIoThreads(), maxMessageLength, new TransportListener());
+        nioTransport.bind(myPeerInfo.getListeningPort());
+        
+        for (PeerInfo peer : allPeers) {
+            if (peer.getPeerId() < peerId) {
+                nioTransport.connect(peer.getHostName(), peer.getListeningPort(), peer.getPeerId());
+            }
+        }
+    }
+
+    /**
+     * Track a connection after its handshake and send our bitfield if we have pieces.
+     * Extensions both handshakes offered are enabled here; block requests only if
+     * Common.cfg asks for them too.
+     */
+    private void registerConnection(PeerConnection connection) throws IOException {
+        connection.setRequestQueue(new RequestQueue(commonConfig.getRequestQueueDepth(), 
+                                                    commonConfig.getMaxRequestQueueDepth(),
+                                                    commonConfig.getRequestTimeoutMillis(),
+                                                    commonConfig.getMinRequestTimeoutMillis()));
+        connection.setExtensions(Extensions.agree(extensions, connection.getPeerExtensions()));
+        connection.setBlockMode(commonConfig.useBlockMode() && connection.supports(Extensions.BLOCK_REQUESTS));
+        connection.setTrafficCounters(metrics.counter("peer." + connection.getPeerId() + ".bytes_in"),
+                                      metrics.counter("peer." + connection.getPeerId() + ".bytes_out"));
+        connection.startWriter(executorService, commonConfig.getSendQueueBytes());
+        // The bitfield goes out before the connection is published, so no HAVE can overtake it
+        AtomicBitfield announced = new AtomicBitfield(fileManager.getTotalNumberOfPieces(), fileManager.getBitfield().snapshot());
+        if (announced.isFull() && connection.supports(Extensions.HAVE_ALL)) {
+            connection.sendHaveAll();
+        } else if (announced.cardinality() > 0) {
+            connection.sendBitfield(announced);
+        }
+        connections.put(connection.getPeerId(), connection);
+        connectedOnce = true;
+        // Pieces stored between the snapshot and the put were announced to everyone else only
+        AtomicBitfield stored = fileManager.getBitfield();
+        for (int i = stored.nextSetBit(0); i >= 0; i = stored.nextSetBit(i + 1)) {
+            if (!announced.get(i)) {
+                connection.sendHave(i);
+                connection.pieceCompleted(i);
+            }
+        }
+    }
+
+    private void connectionClosed(PeerConnection conn, IOException cause) {
+        if (running && cause != null) {
+            System.err.println("Error receiving message from peer " + conn.getPeerId() + ": " + cause.getMessage());
+        }
+        
+        // Out of the map first so nothing offers the released blocks back to this peer
+        if (connections.remove(conn.getPeerId(), conn)) {
+            // Forget the lost peer's pieces and give back anything we were waiting on from it
+            piecePicker.removePeer(conn.getPeerBitfield());
+            releaseRequests(conn);
+        }
+        
+        // Stops the connection's writer as well as the socket
+        try {
+            conn.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private PeerInfo findPeer(int otherPeerId) {
+        for (PeerInfo peer : allPeers) {
+            if (peer.getPeerId() == otherPeerId) {
+                return peer;
+            }
         }
+        return null;
     }
 
     private void handleMessage(PeerConnection connection, Message message) throws IOException {
         byte messageType = message.getMessageType();
         
-        switch (messageType) {
-            case Message.CHOKE:
-                connection.handleChokeMessage(Message.CHOKE);
-                break;
-            case Message.UNCHOKE:
-                connection.handleChokeMessage(Message.UNCHOKE);
-                break;
-            case Message.INTERESTED:
-                connection.handleInterestMessage(Message.INTERESTED);
-                break;
-            case Message.NOT_INTERESTED:
-                connection.handleInterestMessage(Message.NOT_INTERESTED);
-                break;
-            case Message.HAVE:
-                connection.handleHaveMessage();
-                break;
-            case Message.REQUEST:
-                handleRequestMessage(connection, message);
-                break;
-            case Message.PIECE:
-                handlePieceMessage(connection, message);
-                break;
+        JfrEvents.MessageDispatch event = new JfrEvents.MessageDispatch();
+        event.begin();
+        try {
+            switch (messageType) {
+                case Message.CHOKE:
+                    connection.handleChokeMessage(Message.CHOKE);
+                    // Our requests to this peer are dropped; let other peers pick them up
+                    releaseRequests(connection);
+                    break;
+                case Message.UNCHOKE:
+                    connection.handleChokeMessage(Message.UNCHOKE);
+                    fillRequests(connection);
+                    break;
+                case Message.INTERESTED:
+                    connection.handleInterestMessage(Message.INTERESTED);
+                    break;
+                case Message.NOT_INTERESTED:
+                    connection.handleInterestMessage(Message.NOT_INTERESTED);
+                    break;
+                case Message.HAVE:
+                    if (connection.handleHaveMessage(message)) {
+                        piecePicker.addPiece(Message.parseHaveMessage(message.getPayload()));
+                        fillRequests(connection);
+                    }
+                    break;
+                case Message.BITFIELD:
+                    piecePicker.addPeer(connection.handleBitfieldMessage(message));
+                    fillRequests(connection);
+                    break;
+                case Message.HAVE_ALL:
+                    piecePicker.addPeer(connection.handleHaveAllMessage());
+                    fillRequests(connection);
+                    break;
+                case Message.HAVE_BATCH:
+                    handleHaveBatchMessage(connection, message);
+                    break;
+                case Message.REQUEST:
+                    handleRequestMessage(connection, message);
+                    break;
+                case Message.PIECE:
+                    handlePieceMessage(connection, message);
+                    break;
+                case Message.CANCEL:
+                    handleCancelMessage(connection, message);
+                    break;
+            }
+        } finally {
+            event.finish(connection.getPeerId(), message);
+        }
+    }
+
+    /**
+     * Same as a run of HAVE messages, with one round of requests at the end
+     */
+    private void handleHaveBatchMessage(PeerConnection connection, Message message) throws IOException {
+        boolean anyNew = false;
+        for (int pieceIndex : Message.parseHaveBatchMessage(message.getPayload())) {
+            if (connection.handleHave(pieceIndex)) {
+                piecePicker.addPiece(pieceIndex);
+                anyNew = true;
+            }
+        }
+        if (anyNew) {
+            fillRequests(connection);
         }
     }
 
     private void handleRequestMessage(PeerConnection connection, Message message) throws IOException {
         // Only send piece if peer is unchoked
         if (!connection.peerIsChoked()) {
+            if (Message.isBlockRequest(message.getPayload())) {
+                Message.BlockRequest request = Message.parseBlockRequestMessage(message.getPayload());
+                if (fileManager.hasPiece(request.getPieceIndex())) {
+                    connection.sendBlock(request.getPieceIndex(), request.getOffset(), request.getLength());
+                }
+                return;
+            }
+            
             int pieceIndex = Message.parseRequestMessage(message.getPayload());
             
             if (fileManager.hasPiece(pieceIndex)) {
-                byte[] pieceData = fileManager.readPiece(pieceIndex);
-                connection.sendPiece(pieceIndex, pieceData);
+                connection.sendPiece(pieceIndex);
             }
         }
     }
 
+    /**
+     * Drop the cancelled piece if it is still waiting in the connection's send queue
+     */
+    private void handleCancelMessage(PeerConnection connection, Message message) {
+        if (Message.isBlockRequest(message.getPayload())) {
+            Message.BlockRequest cancel = Message.parseBlockRequestMessage(message.getPayload());
+            connection.cancelQueuedPiece(cancel.getPieceIndex(), cancel.getOffset());
+        } else {
+            connection.cancelQueuedPiece(Message.parseRequestMessage(message.getPayload()), 0);
+        }
+    }
+
     private void handlePieceMessage(PeerConnection connection, Message message) throws IOException {
-        Message.PieceData pieceData = Message.parsePieceMessage(message.getPayload());
+        Message.PieceData pieceData = connection.isBlockMode()
+                ? Message.parseBlockPieceMessage(message.getPayload())
+                : Message.parsePieceMessage(message.getPayload());
         int pieceIndex = pieceData.getPieceIndex();
+        int offset = pieceData.getOffset();
         byte[] data = pieceData.getData();
         
-        if (!fileManager.hasPiece(pieceIndex)) {
-            fileManager.writePiece(pieceIndex, data);
-            int numPieces = fileManager.getNumberOfPieces();
-            logger.logDownloadedPiece(pieceIndex, connection.getPeerId(), numPieces);
-            
+        connection.addBytesIn(data.length);
+        
+        // Free the request slot for this peer so we can request another one
+        long rtt = connection.getRequestQueue().complete(RequestQueue.blockKey(pieceIndex, offset), data.length);
+        if (rtt >= 0) {
+            requestRtt.record(rtt / 1000);
+            JfrEvents.requestCompleted(connection.getPeerId(), pieceIndex, offset, data.length, rtt);
+        }
+        
+        if (!fileManager.isPieceReceived(pieceIndex)) {
             // Update download rate (bytes we downloaded from this peer)
             connection.addDownloadRate(data.length);
             
-            // Clear requested piece for this peer so we can request another one
-            requestedPieces.remove(connection.getPeerId());
-            
-            // Send have message to all connections
-            for (PeerConnection conn : connections.values()) {
-                if (conn != connection) {
-                    conn.sendHave(pieceIndex);
+            byte[] piece;
+            if (requestsWholePieces(connection)) {
+                piece = pieceAssembler.pieceReceived(pieceIndex, data);
+                if (endGame) {
+                    // Other peers may have been asked for any block of it
+                    for (int blockOffset = 0; blockOffset < data.length; blockOffset += pieceAssembler.getBlockSize()) {
+                        cancelDuplicates(connection, pieceIndex, blockOffset,
+                                         pieceAssembler.getBlockLength(pieceIndex, blockOffset));
+                    }
+                }
+            } else {
+                piece = pieceAssembler.blockReceived(pieceIndex, offset, data);
+                if (endGame) {
+                    cancelDuplicates(connection, pieceIndex, offset, data.length);
                 }
             }
-            
-            // Update interest for all connections
-            for (PeerConnection conn : connections.values()) {
-                conn.updateInterest();
+            if (piece != null) {
+                // The writer thread reports back through pieceStored once the piece is durable
+                pieceSources.put(pieceIndex, connection.getPeerId());
+                piecePicker.completed(pieceIndex);
+                // A reader thread may wait for the disk; an I/O loop serving other peers may not
+                boolean onIoLoop = connection.usesIoLoop();
+                if (!fileManager.queuePiece(pieceIndex, piece, !onIoLoop)) {
+                    pieceSources.remove(pieceIndex);
+                }
+                if (onIoLoop && fileManager.isWriteQueueFull()) {
+                    // Push back on this peer alone until the writer catches up
+                    connection.pauseReading();
+                    fileManager.whenWriteQueueHasRoom(connection::resumeReading);
+                }
             }
-            
-            // Check if file is complete
-            if (fileManager.isFileComplete()) {
-                logger.logDownloadComplete();
+        }
+        
+        // A request slot just freed up
+        fillRequests(connection);
+    }
+
+    /**
+     * Announce a piece once the write-behind writer has made it durable
+     */
+    private void pieceStored(int pieceIndex) {
+        piecesDownloaded.mark(1);
+        Integer sourcePeerId = pieceSources.remove(pieceIndex);
+        int numPieces = fileManager.getNumberOfPieces();
+        logger.logDownloadedPiece(pieceIndex, sourcePeerId != null ? sourcePeerId : -1, numPieces);
+        
+        // Send have message to all connections, including the sender so it can tell when we are complete.
+        // Batched HAVEs go out with the next flushHaves; interest is updated now either way.
+        boolean batchHaves = commonConfig.getHaveBatchMillis() > 0;
+        for (PeerConnection conn : connections.values()) {
+            try {
+                if (batchHaves) {
+                    conn.queueHave(pieceIndex);
+                } else {
+                    conn.sendHave(pieceIndex);
+                }
+                conn.pieceCompleted(pieceIndex);
+            } catch (IOException e) {
+                System.err.println("Error announcing piece " + pieceIndex + " to peer " + conn.getPeerId() + ": " + e.getMessage());
             }
         }
+        
+        // Check if file is complete
+        if (fileManager.isFileComplete()) {
+            logger.logDownloadComplete();
+        }
+    }
+
+    /**
+     * Send the HAVEs queued for each connection every interval, as one write per connection
+     */
+    private void startHaveFlusher(int intervalMillis) {
+        scheduler.scheduleAtFixedRate(() -> {
+            for (PeerConnection conn : connections.values()) {
+                try {
+                    int sent = conn.flushHaves();
+                    if (sent > 0) {
+                        havesSent.add(sent);
+                        haveBatches.increment();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error announcing pieces to peer " + conn.getPeerId() + ": " + e.getMessage());
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
     private void startChokingScheduler() {
@@ -366,6 +615,9 @@ public class peerProcess {
     }
 
     private void updatePreferredNeighbors() throws IOException {
+        JfrEvents.ChokeRound event = new JfrEvents.ChokeRound();
+        event.begin();
+        
         // Calculate download rates and select preferred neighbors
         List<PeerConnection> interestedConnections = new ArrayList<>();
         for (PeerConnection conn : connections.values()) {
@@ -375,34 +627,41 @@ public class peerProcess {
         }
         
         if (interestedConnections.isEmpty()) {
+            event.finish(0, null, fileManager.isFileComplete());
             return;
         }
         
-        // If we have complete file, select randomly
-        if (fileManager.isFileComplete()) {
-            Collections.shuffle(interestedConnections);
-            int count = Math.min(numberOfPreferredNeighbors, interestedConnections.size());
-            Set<Integer> newPreferred = new HashSet<>();
-            for (int i = 0; i < count; i++) {
-                newPreferred.add(interestedConnections.get(i).getPeerId());
-            }
-            setPreferredNeighbors(newPreferred);
-        } else {
-            // Sort by download rate
-            interestedConnections.sort((a, b) -> Long.compare(b.getDownloadRate(), a.getDownloadRate()));
-            
-            int count = Math.min(numberOfPreferredNeighbors, interestedConnections.size());
-            Set<Integer> newPreferred = new HashSet<>();
-            for (int i = 0; i < count; i++) {
-                newPreferred.add(interestedConnections.get(i).getPeerId());
-            }
-            setPreferredNeighbors(newPreferred);
-        }
+        boolean seeding = fileManager.isFileComplete();
+        setPreferredNeighbors(selectPreferredNeighbors(interestedConnections, numberOfPreferredNeighbors, seeding,
+                                                       ThreadLocalRandom.current()));
         
         // Reset download rates
         for (PeerConnection conn : connections.values()) {
             conn.resetDownloadRate();
         }
+        event.finish(interestedConnections.size(), preferredNeighbors, seeding);
+    }
+
+    /**
+     * Choose up to count preferred neighbors from interested connections: at random
+     * once we have the complete file, otherwise by bytes downloaded in the last interval.
+     * Reorders the list.
+     */
+    static Set<Integer> selectPreferredNeighbors(List<? extends Neighbor> interested, int count, boolean seeding,
+                                                 Random random) {
+        if (seeding) {
+            Collections.shuffle(interested, random);
+        } else {
+            // Sort by download rate
+            interested.sort((a, b) -> Long.compare(b.getDownloadRate(), a.getDownloadRate()));
+        }
+        
+        int selected = Math.min(count, interested.size());
+        Set<Integer> preferred = new HashSet<>();
+        for (int i = 0; i < selected; i++) {
+            preferred.add(interested.get(i).getPeerId());
+        }
+        return preferred;
     }
 
     private void setPreferredNeighbors(Set<Integer> newPreferred) throws IOException {
@@ -438,22 +697,12 @@ public class peerProcess {
     }
 
     private void updateOptimisticallyUnchokedNeighbor() throws IOException {
-        // Find choked but interested peers
-        List<PeerConnection> candidates = new ArrayList<>();
-        for (PeerConnection conn : connections.values()) {
-            if (conn.peerIsChoked() && conn.peerIsInterested() && 
-                !preferredNeighbors.contains(conn.getPeerId())) {
-                candidates.add(conn);
-            }
-        }
-        
-        if (candidates.isEmpty()) {
+        PeerConnection selected = selectOptimisticNeighbor(connections.values(), preferredNeighbors,
+                                                           ThreadLocalRandom.current());
+        if (selected == null) {
             optimisticallyUnchokedNeighbor = null;
             return;
         }
-        
-        // Select randomly
-        PeerConnection selected = candidates.get((int) (Math.random() * candidates.size()));
         int newOptimistic = selected.getPeerId();
         
         // If different from current, update
@@ -472,51 +721,294 @@ public class peerProcess {
         }
     }
 
-    private void startPieceRequestHandler() {
-        executorService.submit(() -> {
-            while (running) {
-                try {
-                    for (PeerConnection conn : connections.values()) {
-                        if (!conn.isChoked() && conn.hasInterestingPieces()) {
-                            int peerId = conn.getPeerId();
-                            
-                            // Check if we already requested a piece from this peer
-                            if (!requestedPieces.containsKey(peerId)) {
-                                int pieceIndex = conn.getRandomInterestingPiece();
-                                if (pieceIndex != -1) {
-                                    // Check if we haven't requested this piece from another peer
-                                    boolean alreadyRequested = requestedPieces.containsValue(pieceIndex);
-                                    if (!alreadyRequested && !fileManager.hasPiece(pieceIndex)) {
-                                        conn.sendRequest(pieceIndex);
-                                        requestedPieces.put(peerId, pieceIndex);
-                                    }
-                                }
-                            }
-                        } else {
-                            // Remove from requested if choked
-                            requestedPieces.remove(conn.getPeerId());
-                        }
-                    }
-                    
-                    Thread.sleep(100); // Small delay to avoid busy waiting
-                } catch (Exception e) {
-                    if (running) {
-                        System.err.println("Error in piece request handler: " + e.getMessage());
+    /**
+     * Choose a random neighbor that is interested, choked and not preferred, or null if there is none
+     */
+    static <T extends Neighbor> T selectOptimisticNeighbor(Collection<T> neighbors, Set<Integer> preferred,
+                                                          Random random) {
+        List<T> candidates = new ArrayList<>();
+        for (T neighbor : neighbors) {
+            if (neighbor.peerIsChoked() && neighbor.peerIsInterested() && 
+                !preferred.contains(neighbor.getPeerId())) {
+                candidates.add(neighbor);
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+    }
+
+    /**
+     * Keep the peer's request pipeline full up to its current depth. Called whenever
+     * something changes what we can request: unchoke, a piece arriving, have/bitfield,
+     * or pieces being released by another connection.
+     */
+    private void fillRequests(PeerConnection conn) throws IOException {
+        RequestQueue requests = conn.getRequestQueue();
+        // Held across the check and the sends so a concurrent choke cannot be missed.
+        // A lock rather than a monitor, so a virtual thread blocked in a send does
+        // not pin its carrier.
+        Lock requestLock = conn.getRequestLock();
+        requestLock.lock();
+        try {
+            if (conn.isChoked() || conn.isClosed()) {
+                return;
+            }
+            
+            AtomicBitfield peerBitfield = conn.getPeerBitfield();
+            boolean wholePieces = requestsWholePieces(conn);
+            while (requests.hasRoom()) {
+                // A block of a piece in progress, or of the rarest new piece this peer has
+                long block = wholePieces ? pieceAssembler.nextPiece(peerBitfield) : pieceAssembler.nextBlock(peerBitfield);
+                if (block == -1 && commonConfig.useEndGame() && !wholePieces) {
+                    // Everything left is already requested; race this peer against the others
+                    block = pieceAssembler.nextEndGameBlock(peerBitfield, requests);
+                    if (block != -1) {
+                        endGame = true;
                     }
                 }
+                if (block == -1) {
+                    break;
+                }
+                
+                // Record before sending so a fast reply cannot beat the entry
+                int pieceIndex = RequestQueue.pieceOf(block);
+                int offset = RequestQueue.offsetOf(block);
+                long sentAt = requests.add(block);
+                int length = wholePieces ? pieceAssembler.getPieceLength(pieceIndex)
+                        : pieceAssembler.getBlockLength(pieceIndex, offset);
+                requestTimers.schedule(new PendingRequest(conn, block, sentAt), sentAt + requests.getTimeoutNanos());
+                conn.sendRequest(pieceIndex, offset, length);
+                JfrEvents.requestIssued(conn.getPeerId(), pieceIndex, offset, length, requests.size(), endGame);
+            }
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    /**
+     * With block mode on, a peer that did not agree to block requests is asked for whole pieces
+     */
+    private boolean requestsWholePieces(PeerConnection conn) {
+        return commonConfig.useBlockMode() && !conn.isBlockMode();
+    }
+
+    /**
+     * Hand back a request that was dropped, cancelled or timed out
+     */
+    private void releaseRequest(PeerConnection conn, long block) {
+        if (requestsWholePieces(conn)) {
+            pieceAssembler.releasePiece(RequestQueue.pieceOf(block));
+        } else {
+            pieceAssembler.release(RequestQueue.pieceOf(block), RequestQueue.offsetOf(block));
+        }
+    }
+
+    /**
+     * In end game a block may be requested from several peers; once one copy arrives,
+     * cancel the others so the bandwidth goes to blocks we still need
+     */
+    private void cancelDuplicates(PeerConnection source, int pieceIndex, int offset, int length) {
+        long block = RequestQueue.blockKey(pieceIndex, offset);
+        for (PeerConnection conn : connections.values()) {
+            if (conn == source || !conn.getRequestQueue().remove(block)) {
+                continue;
+            }
+            releaseRequest(conn, block);
+            try {
+                conn.sendCancel(pieceIndex, offset, length);
+            } catch (IOException e) {
+                System.err.println("Error cancelling request to peer " + conn.getPeerId() + ": " + e.getMessage());
             }
+        }
+    }
+
+    /**
+     * Offer released pieces to every unchoked connection
+     */
+    private void fillRequestsForAll() {
+        fillRequestsExcept(null);
+    }
+
+    /**
+     * Offer pieces a connection gave up to every other open, unchoked connection
+     */
+    private void fillRequestsExcept(PeerConnection except) {
+        for (PeerConnection conn : connections.values()) {
+            if (conn == except || conn.isClosed()) {
+                continue;
+            }
+            try {
+                fillRequests(conn);
+            } catch (IOException e) {
+                System.err.println("Error requesting pieces from peer " + conn.getPeerId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gauges read whenever metrics are snapshotted
+     */
+    private void registerGauges() {
+        metrics.gauge("pieces.have", fileManager::getNumberOfPieces);
+        metrics.gauge("pieces.partial", pieceAssembler::getPartialCount);
+        metrics.gauge("connections", connections::size);
+        metrics.gauge("requests.outstanding", () -> {
+            long total = 0;
+            for (PeerConnection conn : connections.values()) {
+                total += conn.getRequestQueue().size();
+            }
+            return total;
+        });
+        metrics.gauge("queue.send_bytes", () -> {
+            long total = 0;
+            for (PeerConnection conn : connections.values()) {
+                total += conn.getQueuedPieceBytes();
+            }
+            return total;
         });
+        metrics.gauge("queue.send_messages", () -> {
+            long total = 0;
+            for (PeerConnection conn : connections.values()) {
+                total += conn.getQueuedMessages();
+            }
+            return total;
+        });
+        metrics.gauge("queue.piece_writer", fileManager::getWriteQueueSize);
+        metrics.gauge("queue.logger", logger::getQueueSize);
+        metrics.gauge("queue.request_timers", requestTimers::size);
+        metrics.gauge("logger.dropped", logger::getDroppedCount);
+        if (executorService instanceof ThreadPoolExecutor) {
+            metrics.gauge("executor.active_threads", ((ThreadPoolExecutor) executorService)::getActiveCount);
+        }
+    }
+
+    private void startMetricsDump(String path) {
+        int interval = commonConfig.getMetricsIntervalSeconds();
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                metrics.writeTo(path);
+            } catch (Exception e) {
+                System.err.println("Error writing metrics: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Serve live JSON stats on the loopback interface; failure to bind only disables the server
+     */
+    private void startStatsServer(int port) {
+        try {
+            statsServer = new StatsServer(port, peerId, fileManager, piecePicker, pieceAssembler, connections,
+                                          metrics, () -> preferredNeighbors, () -> optimisticallyUnchokedNeighbor);
+            statsServer.start();
+            System.out.println("Stats on: http://127.0.0.1:" + statsServer.getPort() + "/stats");
+        } catch (IOException e) {
+            System.err.println("Error starting stats server on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Wait until the peer is listening so later peers in PeerInfo.cfg can connect to it
+     */
+    public boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+        return listening.await(timeout, unit);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean hasCompleteFile() {
+        FileManager files = fileManager;
+        return files != null && files.isFileComplete();
+    }
+
+    private void startRequestTimer() {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                expireRequests();
+            } catch (Exception e) {
+                System.err.println("Error expiring requests: " + e.getMessage());
+            }
+        }, REQUEST_TIMER_TICK_MILLIS, REQUEST_TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Give blocks whose deadline passed to other peers. The peer that let them expire
+     * is snubbed: it keeps a single request in flight until it delivers again.
+     */
+    private void expireRequests() {
+        Set<PeerConnection> snubbed = new HashSet<>();
+        boolean released = false;
+        for (PendingRequest request : requestTimers.expire(System.nanoTime())) {
+            PeerConnection conn = request.connection;
+            if (!conn.getRequestQueue().timedOut(request.blockKey, request.sentAt)) {
+                continue;
+            }
+            int pieceIndex = RequestQueue.pieceOf(request.blockKey);
+            int offset = RequestQueue.offsetOf(request.blockKey);
+            releaseRequest(conn, request.blockKey);
+            released = true;
+            snubbed.add(conn);
+            try {
+                conn.sendCancel(pieceIndex, offset, pieceAssembler.getBlockLength(pieceIndex, offset));
+            } catch (IOException e) {
+                System.err.println("Error cancelling request to peer " + conn.getPeerId() + ": " + e.getMessage());
+            }
+        }
+        if (!released) {
+            return;
+        }
+        
+        // Offer the blocks to responsive peers first; the snubbed ones get theirs back last
+        for (PeerConnection conn : connections.values()) {
+            if (!snubbed.contains(conn)) {
+                try {
+                    fillRequests(conn);
+                } catch (IOException e) {
+                    System.err.println("Error requesting pieces from peer " + conn.getPeerId() + ": " + e.getMessage());
+                }
+            }
+        }
+        for (PeerConnection conn : snubbed) {
+            try {
+                fillRequests(conn);
+            } catch (IOException e) {
+                System.err.println("Error requesting pieces from peer " + conn.getPeerId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drop all outstanding requests to a peer and hand the blocks to other peers
+     */
+    private void releaseRequests(PeerConnection conn) {
+        List<Long> released;
+        conn.getRequestLock().lock();
+        try {
+            released = conn.getRequestQueue().clear();
+        } finally {
+            conn.getRequestLock().unlock();
+        }
+        for (long block : released) {
+            releaseRequest(conn, block);
+        }
+        if (!released.isEmpty()) {
+            fillRequestsExcept(conn);
+        }
     }
 
     private void monitorCompletion() {
         executorService.submit(() -> {
             while (running) {
                 try {
-                    // Check if all peers have complete file
+                    // Check if all peers still connected have complete file
                     boolean allComplete = true;
                     for (PeerConnection conn : connections.values()) {
-                        BitSet peerBitfield = conn.getPeerBitfield();
-                        if (peerBitfield.cardinality() < commonConfig.getNumberOfPieces()) {
+                        if (!conn.getPeerBitfield().isFull()) {
                             allComplete = false;
                             break;
                         }
@@ -527,7 +1019,7 @@ public class peerProcess {
                         allComplete = false;
                     }
                     
-                    if (allComplete && connections.size() > 0) {
+                    if (allComplete && connectedOnce) {
                         System.out.println("All peers have downloaded the complete file. Terminating...");
                         shutdown();
                         break;
@@ -543,9 +1035,23 @@ public class peerProcess {
         });
     }
 
-    private void shutdown() {
+    /**
+     * Stop the peer now rather than when the whole swarm is complete
+     */
+    public void stop() {
+        shutdown();
+    }
+
+    private synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
         running = false;
         try {
+            if (statsServer != null) {
+                statsServer.close();
+            }
+            
             if (serverSocket != null) {
                 serverSocket.close();
             }
@@ -554,15 +1060,25 @@ public class peerProcess {
                 conn.close();
             }
             
+            if (nioTransport != null) {
+                nioTransport.close();
+            }
+            
             if (fileManager != null) {
                 fileManager.close();
             }
             
+            if (commonConfig != null && commonConfig.getMetricsIntervalSeconds() > 0) {
+                metrics.writeTo(workingDir + File.separator + "metrics_peer_" + peerId + ".txt");
+            }
+            
             if (logger != null) {
                 logger.close();
             }
             
-            executorService.shutdown();
+            if (executorService != null) {
+                executorService.shutdown();
+            }
             scheduler.shutdown();
             
             System.out.println("Peer " + peerId + " shutdown complete.");
@@ -571,6 +1087,75 @@ public class peerProcess {
         }
     }
 
+    /**
+     * A request waiting in the timer wheel; stale once answered, cancelled or re-sent
+     */
+    private static class PendingRequest {
+        final PeerConnection connection;
+        final long blockKey;
+        final long sentAt;
+
+        PendingRequest(PeerConnection connection, long blockKey, long sentAt) {
+            this.connection = connection;
+            this.blockKey = blockKey;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * Receives write-behind completions from the FileManager writer thread
+     */
+    private class StoredPieceListener implements PieceWriter.Listener {
+        @Override
+        public void pieceStored(int pieceIndex) {
+            peerProcess.this.pieceStored(pieceIndex);
+        }
+
+        @Override
+        public void pieceFailed(int pieceIndex, IOException cause) {
+            pieceSources.remove(pieceIndex);
+            piecePicker.failed(pieceIndex);
+            fillRequestsForAll();
+            System.err.println("Error writing piece " + pieceIndex + ": " + cause.getMessage());
+        }
+    }
+
+    /**
+     * Bridges NioTransport callbacks into the same handlers the blocking readers use
+     */
+    private class TransportListener implements NioTransport.Listener {
+        @Override
+        public PeerConnection connectionEstablished(NioChannel channel, int remotePeerId) throws IOException {
+            if (findPeer(remotePeerId) == null) {
+                System.err.println("Unknown peer ID: " + remotePeerId);
+                return null;
+            }
+            
+            PeerConnection connection = new PeerConnection(peerId, remotePeerId, channel, 
+                                                          commonConfig.getNumberOfPieces(), 
+                                                          logger, fileManager);
+            connection.setPeerExtensions(channel.getPeerExtensions());
+            if (channel.isIncoming()) {
+                logger.logTcpConnectionReceived(remotePeerId);
+            } else {
+                logger.logTcpConnectionMade(remotePeerId);
+            }
+            
+            registerConnection(connection);
+            return connection;
+        }
+
+        @Override
+        public void messageReceived(PeerConnection connection, Message message) throws IOException {
+            handleMessage(connection, message);
+        }
+
+        @Override
+        public void connectionClosed(PeerConnection connection, IOException cause) {
+            peerProcess.this.connectionClosed(connection, cause);
+        }
+    }
+
     public static void main(String[] args) {
         if (args.length != 1) {
             System.err.println("Usage: java peerProcess <peerId>");
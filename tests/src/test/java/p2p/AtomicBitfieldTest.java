@@ -0,0 +1,206 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class AtomicBitfieldTest {
+
+    @Test
+    void setAndClearReportChangesAcrossWordBoundaries() {
+        AtomicBitfield bits = new AtomicBitfield(130);
+        for (int index : new int[] {0, 63, 64, 127, 128, 129}) {
+            assertTrue(bits.set(index));
+            assertFalse(bits.set(index));
+            assertTrue(bits.get(index));
+        }
+        assertEquals(6, bits.cardinality());
+        assertFalse(bits.get(1));
+        assertFalse(bits.get(65));
+
+        assertTrue(bits.clear(64));
+        assertFalse(bits.clear(64));
+        assertFalse(bits.get(64));
+        assertTrue(bits.get(63));
+        assertEquals(5, bits.cardinality());
+    }
+
+    @Test
+    void indexesOutsideTheFieldAreRejectedOrNeverSet() {
+        AtomicBitfield bits = new AtomicBitfield(70);
+        assertThrows(IndexOutOfBoundsException.class, () -> bits.set(70));
+        assertThrows(IndexOutOfBoundsException.class, () -> bits.set(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> bits.clear(70));
+        assertFalse(bits.get(70));
+        assertFalse(bits.get(-1));
+    }
+
+    @Test
+    void wordLayoutMatchesBitSet() {
+        Random random = new Random(1);
+        AtomicBitfield bits = new AtomicBitfield(200);
+        BitSet expected = new BitSet(200);
+        for (int i = 0; i < 200; i++) {
+            if (random.nextBoolean()) {
+                bits.set(i);
+                expected.set(i);
+            }
+        }
+        long[] words = bits.snapshot();
+        long[] expectedWords = expected.toLongArray();
+        assertEquals(4, words.length);
+        assertArrayEquals(expectedWords, Arrays.copyOf(words, expectedWords.length));
+        for (int i = 0; i < words.length; i++) {
+            assertEquals(words[i], bits.getWord(i));
+        }
+    }
+
+    @Test
+    void bitsPastTheSizeAreDropped() {
+        AtomicBitfield fromWords = new AtomicBitfield(70, new long[] {-1L, -1L, -1L});
+        assertEquals(70, fromWords.cardinality());
+        assertTrue(fromWords.isFull());
+        assertEquals((1L << 6) - 1, fromWords.getWord(1));
+        assertEquals(2, fromWords.getWordCount());
+
+        AtomicBitfield ored = new AtomicBitfield(70);
+        ored.or(new long[] {0, -1L});
+        assertEquals(6, ored.cardinality());
+        assertEquals(-1, ored.nextSetBit(70));
+    }
+
+    @Test
+    void orCountsOnlyNewBits() {
+        AtomicBitfield bits = new AtomicBitfield(128);
+        bits.set(0);
+        bits.set(64);
+        bits.or(new long[] {0b111, 0b1});
+        assertEquals(4, bits.cardinality());
+        assertTrue(bits.get(1));
+        assertTrue(bits.get(2));
+
+        long version = bits.getVersion();
+        bits.or(new long[] {0b1, 0});
+        assertEquals(version, bits.getVersion());
+        assertEquals(4, bits.cardinality());
+    }
+
+    @Test
+    void versionChangesOnlyWhenABitChanges() {
+        AtomicBitfield bits = new AtomicBitfield(10);
+        long start = bits.getVersion();
+        bits.set(3);
+        long afterSet = bits.getVersion();
+        assertTrue(afterSet > start);
+        bits.set(3);
+        bits.clear(4);
+        assertEquals(afterSet, bits.getVersion());
+        bits.clear(3);
+        assertTrue(bits.getVersion() > afterSet);
+    }
+
+    @Test
+    void nextSetBitWalksAcrossWords() {
+        AtomicBitfield bits = new AtomicBitfield(200);
+        bits.set(5);
+        bits.set(64);
+        bits.set(199);
+        assertEquals(5, bits.nextSetBit(-3));
+        assertEquals(5, bits.nextSetBit(5));
+        assertEquals(64, bits.nextSetBit(6));
+        assertEquals(199, bits.nextSetBit(65));
+        assertEquals(-1, bits.nextSetBit(200));
+
+        List<Integer> walked = new ArrayList<>();
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            walked.add(i);
+        }
+        assertEquals(List.of(5, 64, 199), walked);
+    }
+
+    @Test
+    void differenceQueriesMatchBruteForce() {
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            int size = 1 + random.nextInt(300);
+            AtomicBitfield theirs = new AtomicBitfield(size);
+            AtomicBitfield ours = new AtomicBitfield(size);
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                boolean they = random.nextBoolean();
+                boolean we = random.nextBoolean();
+                if (they) {
+                    theirs.set(i);
+                }
+                if (we) {
+                    ours.set(i);
+                }
+                if (they && !we) {
+                    expected.add(i);
+                }
+            }
+
+            assertEquals(expected.size(), theirs.countNotIn(ours));
+            assertEquals(!expected.isEmpty(), theirs.hasAnyNotIn(ours));
+            for (int n = 0; n < expected.size(); n++) {
+                assertEquals(expected.get(n), theirs.nthNotIn(ours, n));
+            }
+            assertEquals(-1, theirs.nthNotIn(ours, expected.size()));
+        }
+    }
+
+    @Test
+    void isFullOnceEveryBitIsSet() {
+        AtomicBitfield bits = new AtomicBitfield(65);
+        for (int i = 0; i < 64; i++) {
+            bits.set(i);
+        }
+        assertFalse(bits.isFull());
+        bits.set(64);
+        assertTrue(bits.isFull());
+    }
+
+    @Test
+    void concurrentSettersCountEachBitOnce() throws InterruptedException {
+        int size = 10_000;
+        AtomicBitfield bits = new AtomicBitfield(size);
+        int[] strides = {1, 3, 7, 9}; // Coprime with size, so each visits every bit
+        Thread[] threads = new Thread[strides.length];
+        int[] newlySet = new int[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                // Every thread sets every bit, in a different order
+                for (int i = 0; i < size; i++) {
+                    if (bits.set((i * strides[id]) % size)) {
+                        newlySet[id]++;
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int total = 0;
+        for (int count : newlySet) {
+            total += count;
+        }
+        assertEquals(size, total);
+        assertEquals(size, bits.cardinality());
+        assertTrue(bits.isFull());
+    }
+}
@@ -0,0 +1,97 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * BITFIELD payloads encoded and decoded a word at a time, checked against the
+ * byte-at-a-time wire format: piece 0 is the high bit of the first byte
+ */
+class BitfieldCodecTest {
+
+    @Test
+    void pieceZeroIsTheHighBitOfTheFirstByte() {
+        AtomicBitfield bits = new AtomicBitfield(16);
+        bits.set(0);
+        bits.set(7);
+        bits.set(9);
+        Message message = Message.createBitfieldMessage(bits, 16);
+        assertEquals(Message.BITFIELD, message.getMessageType());
+        assertArrayEquals(new byte[] {(byte) 0x81, 0x40}, message.getPayload());
+    }
+
+    @Test
+    void encodingMatchesByteAtATimeReference() {
+        Random random = new Random(3);
+        for (int numberOfPieces = 1; numberOfPieces <= 300; numberOfPieces++) {
+            AtomicBitfield bits = randomBitfield(numberOfPieces, random);
+            byte[] payload = Message.createBitfieldMessage(bits, numberOfPieces).getPayload();
+            assertArrayEquals(referenceEncode(bits, numberOfPieces), payload, "pieces " + numberOfPieces);
+        }
+    }
+
+    @Test
+    void decodeInvertsEncode() {
+        Random random = new Random(5);
+        for (int numberOfPieces = 1; numberOfPieces <= 300; numberOfPieces++) {
+            AtomicBitfield bits = randomBitfield(numberOfPieces, random);
+            byte[] payload = Message.createBitfieldMessage(bits, numberOfPieces).getPayload();
+            AtomicBitfield decoded = Message.parseBitfieldMessage(payload, numberOfPieces);
+            assertArrayEquals(bits.snapshot(), decoded.snapshot(), "pieces " + numberOfPieces);
+            assertEquals(bits.cardinality(), decoded.cardinality());
+        }
+    }
+
+    @Test
+    void spareBitsInTheLastByteAreIgnored() {
+        byte[] payload = new byte[2];
+        Arrays.fill(payload, (byte) 0xFF);
+        AtomicBitfield decoded = Message.parseBitfieldMessage(payload, 10);
+        assertEquals(10, decoded.cardinality());
+        assertTrue(decoded.isFull());
+    }
+
+    @Test
+    void extraTrailingBytesAreIgnored() {
+        byte[] payload = new byte[20];
+        Arrays.fill(payload, (byte) 0xFF);
+        AtomicBitfield decoded = Message.parseBitfieldMessage(payload, 70);
+        assertEquals(70, decoded.cardinality());
+    }
+
+    @Test
+    void missingTrailingBytesCountAsZero() {
+        AtomicBitfield decoded = Message.parseBitfieldMessage(new byte[] {(byte) 0x80, 0x01}, 100);
+        assertEquals(2, decoded.cardinality());
+        assertTrue(decoded.get(0));
+        assertTrue(decoded.get(15));
+        assertFalse(decoded.get(16));
+    }
+
+    private static AtomicBitfield randomBitfield(int numberOfPieces, Random random) {
+        AtomicBitfield bits = new AtomicBitfield(numberOfPieces);
+        for (int i = 0; i < numberOfPieces; i++) {
+            if (random.nextBoolean()) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    private static byte[] referenceEncode(AtomicBitfield bits, int numberOfPieces) {
+        byte[] bytes = new byte[(numberOfPieces + 7) / 8];
+        for (int i = 0; i < numberOfPieces; i++) {
+            if (bits.get(i)) {
+                bytes[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
+        }
+        return bytes;
+    }
+}
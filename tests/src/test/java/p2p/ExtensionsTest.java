@@ -0,0 +1,71 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Extension bits carried in the handshake and the mask both ends agree on
+ */
+class ExtensionsTest {
+
+    @Test
+    void bitsAreDistinct() {
+        int[] bits = {Extensions.BLOCK_REQUESTS, Extensions.CANCEL, Extensions.HAVE_BATCH, Extensions.HAVE_ALL};
+        int seen = 0;
+        for (int bit : bits) {
+            assertEquals(1, Integer.bitCount(bit));
+            assertEquals(0, seen & bit);
+            seen |= bit;
+        }
+        assertEquals(seen, Extensions.SUPPORTED);
+    }
+
+    @Test
+    void onlyExtensionsBothSidesOfferAreAgreed() {
+        int local = Extensions.BLOCK_REQUESTS | Extensions.CANCEL | Extensions.HAVE_BATCH;
+        int remote = Extensions.CANCEL | Extensions.HAVE_BATCH | Extensions.HAVE_ALL;
+        assertEquals(Extensions.CANCEL | Extensions.HAVE_BATCH, Extensions.agree(local, remote));
+        assertEquals(Extensions.agree(local, remote), Extensions.agree(remote, local));
+    }
+
+    @Test
+    void basePeerGetsNoExtensions() {
+        assertEquals(0, Extensions.agree(Extensions.SUPPORTED, 0));
+        assertEquals(0, Extensions.agree(0, Extensions.SUPPORTED));
+    }
+
+    @Test
+    void unknownBitsFromANewerPeerAreIgnored() {
+        int remote = Extensions.SUPPORTED | (1 << 20) | (1 << 31);
+        assertEquals(Extensions.SUPPORTED, Extensions.agree(Extensions.SUPPORTED, remote));
+    }
+
+    @Test
+    void handshakeCarriesTheMaskInBytes24To27() throws IOException {
+        int mask = Extensions.CANCEL | Extensions.HAVE_ALL;
+        byte[] handshake = Message.createHandshake(1234, mask);
+        assertEquals(32, handshake.length);
+        for (int i = 18; i < 24; i++) {
+            assertEquals(0, handshake[i], "reserved byte " + i);
+        }
+        assertEquals(mask, Message.parseHandshakeExtensions(handshake));
+        assertEquals(1234, Message.parseHandshake(handshake));
+    }
+
+    @Test
+    void baseHandshakeOffersNothing() throws IOException {
+        byte[] handshake = Message.createHandshake(1001);
+        assertEquals(0, Message.parseHandshakeExtensions(handshake));
+        assertEquals(1001, Message.parseHandshake(handshake));
+    }
+
+    @Test
+    void describeNamesEachAgreedExtension() {
+        assertEquals("none", Extensions.describe(0));
+        assertEquals("cancel,have_all", Extensions.describe(Extensions.CANCEL | Extensions.HAVE_ALL));
+        assertEquals("block_requests,cancel,have_batch,have_all", Extensions.describe(Extensions.SUPPORTED));
+    }
+}
@@ -0,0 +1,181 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Frame decoding in NioChannel, driven through a real NioTransport from a plain socket
+ */
+class NioFramingTest {
+    private static final int PIECE_SIZE = 256 * 1024; // Larger than the initial read buffer
+    private static final int MAX_MESSAGE_LENGTH = peerProcess.maxMessageLength(PIECE_SIZE, 16);
+
+    private final BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final AtomicReference<IOException> closeCause = new AtomicReference<>();
+    private NioTransport transport;
+    private int port;
+    private Socket socket;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        transport = new NioTransport(1001, Extensions.SUPPORTED, 1, MAX_MESSAGE_LENGTH, new NioTransport.Listener() {
+            @Override
+            public PeerConnection connectionEstablished(NioChannel channel, int remotePeerId) throws IOException {
+                return new PeerConnection(1001, remotePeerId, channel, 8, null, null);
+            }
+
+            @Override
+            public void messageReceived(PeerConnection connection, Message message) {
+                received.add(message);
+            }
+
+            @Override
+            public void connectionClosed(PeerConnection connection, IOException cause) {
+                closeCause.set(cause);
+                closed.countDown();
+            }
+        });
+        transport.bind(port);
+        socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write(Message.createHandshake(1002, 0));
+        byte[] handshake = new byte[32];
+        new DataInputStream(socket.getInputStream()).readFully(handshake);
+        assertEquals(1001, Message.parseHandshake(handshake));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        socket.close();
+        transport.close();
+    }
+
+    @Test
+    void frameSplitIntoSingleBytesIsReassembled() throws Exception {
+        byte[] payload = new byte[20];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        OutputStream out = socket.getOutputStream();
+        for (byte b : frame(Message.PIECE, payload)) {
+            out.write(b);
+            out.flush();
+            Thread.sleep(2);
+        }
+
+        Message message = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals(Message.PIECE, message.getMessageType());
+        assertArrayEquals(payload, message.getPayload());
+    }
+
+    @Test
+    void severalFramesInOneWriteAreDispatchedInOrder() throws Exception {
+        ByteBuffer both = ByteBuffer.allocate(64);
+        both.put(frame(Message.INTERESTED, new byte[0]));
+        both.put(frame(Message.HAVE, new byte[] {0, 0, 0, 7}));
+        // Start of a third frame that never completes
+        both.put(frame(Message.HAVE, new byte[] {0, 0, 0, 9}), 0, 6);
+        socket.getOutputStream().write(both.array(), 0, both.position());
+
+        Message first = received.poll(5, TimeUnit.SECONDS);
+        Message second = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(Message.INTERESTED, first.getMessageType());
+        assertEquals(Message.HAVE, second.getMessageType());
+        assertEquals(7, Message.parseHaveMessage(second.getPayload()));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void frameLargerThanReadBufferIsReassembled() throws Exception {
+        byte[] payload = new byte[150_000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        byte[] frame = frame(Message.PIECE, payload);
+        OutputStream out = socket.getOutputStream();
+        // Uneven chunks so frame boundaries never line up with reads
+        for (int from = 0; from < frame.length; from += 10_007) {
+            out.write(frame, from, Math.min(10_007, frame.length - from));
+            out.flush();
+        }
+
+        Message message = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertArrayEquals(payload, message.getPayload());
+    }
+
+    @Test
+    void largestBlockPieceFrameIsAccepted() throws Exception {
+        // A block as long as a whole piece less one byte, carried with its 8 byte index and offset
+        int blockLength = PIECE_SIZE - 1;
+        byte[] block = new byte[blockLength];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (i * 7);
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(Message.createBlockPieceHeader(3, 1, blockLength));
+        out.write(block);
+        out.flush();
+
+        Message message = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message, "block frame was rejected");
+        assertEquals(Message.PIECE, message.getMessageType());
+        assertEquals(8 + blockLength, message.getPayload().length);
+        assertEquals(1, closed.getCount());
+    }
+
+    @Test
+    void oversizedFrameClosesConnection() throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.putInt(MAX_MESSAGE_LENGTH + 1);
+        header.put(Message.PIECE);
+        socket.getOutputStream().write(header.array());
+
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertNotNull(closeCause.get());
+        assertTrue(closeCause.get().getMessage().contains("Invalid message length"));
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void zeroLengthFrameClosesConnection() throws Exception {
+        socket.getOutputStream().write(new byte[] {0, 0, 0, 0});
+
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(closeCause.get().getMessage().contains("Invalid message length"));
+    }
+
+    private static byte[] frame(byte type, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + payload.length);
+        buffer.putInt(1 + payload.length);
+        buffer.put(type);
+        buffer.put(payload);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,185 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Depth and timeout behaviour of RequestQueue, run on a clock the test moves by hand
+ */
+class RequestQueueTest {
+    private static final long MILLIS = 1_000_000L;
+    private static final int BLOCK = 16384;
+
+    private long now = 1_000 * MILLIS;
+
+    private RequestQueue queue(int minDepth, int maxDepth) {
+        return new RequestQueue(minDepth, maxDepth, 5000, 50, () -> now);
+    }
+
+    @Test
+    void blockKeysRoundTrip() {
+        long key = RequestQueue.blockKey(123456, 49152);
+        assertEquals(123456, RequestQueue.pieceOf(key));
+        assertEquals(49152, RequestQueue.offsetOf(key));
+        assertEquals(0, RequestQueue.offsetOf(RequestQueue.blockKey(7, 0)));
+    }
+
+    @Test
+    void roomIsLimitedToTheStartingDepth() {
+        RequestQueue requests = queue(2, 16);
+        assertTrue(requests.hasRoom());
+        requests.add(RequestQueue.blockKey(0, 0));
+        assertTrue(requests.hasRoom());
+        requests.add(RequestQueue.blockKey(1, 0));
+        assertFalse(requests.hasRoom());
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    void depthFollowsTheBandwidthDelayProduct() {
+        RequestQueue requests = queue(2, 64);
+        // A block sent every 10 ms and answered 100 ms later: 1.6 MB/s over a 100 ms round trip
+        deliver(requests, 20, 10, 100);
+
+        assertEquals(100 * MILLIS, requests.getMinRttNanos());
+        assertEquals(BLOCK * 100.0, requests.getBytesPerSecond(), 1.0);
+        // 163840 bytes in flight / 16384 per request = 10, plus one
+        assertEquals(11, requests.getDepth());
+    }
+
+    @Test
+    void depthIsClampedToTheMaximum() {
+        RequestQueue requests = queue(2, 4);
+        deliver(requests, 20, 10, 100);
+        assertEquals(4, requests.getDepth());
+    }
+
+    @Test
+    void depthStaysAtTheMinimumOnAFastLink() {
+        RequestQueue requests = queue(3, 16);
+        // One block per 100 ms with a 1 ms round trip needs no pipelining
+        deliver(requests, 5, 100, 1);
+        assertEquals(3, requests.getDepth());
+    }
+
+    @Test
+    void completingAnUnknownBlockReturnsMinusOne() {
+        RequestQueue requests = queue(2, 16);
+        assertEquals(-1, requests.complete(RequestQueue.blockKey(9, 0), BLOCK));
+    }
+
+    @Test
+    void timeoutStartsAtTheInitialValueThenFollowsRoundTrips() {
+        RequestQueue requests = queue(2, 16);
+        assertEquals(5000 * MILLIS, requests.getTimeoutNanos());
+
+        long key = RequestQueue.blockKey(0, 0);
+        requests.add(key);
+        now += 100 * MILLIS;
+        requests.complete(key, BLOCK);
+        // First sample: smoothed 100 ms, deviation 50 ms, timeout = 100 + 4 * 50
+        assertEquals(300 * MILLIS, requests.getTimeoutNanos());
+    }
+
+    @Test
+    void timeoutNeverDropsBelowTheMinimum() {
+        RequestQueue requests = queue(2, 16);
+        long key = RequestQueue.blockKey(0, 0);
+        requests.add(key);
+        now += 1 * MILLIS;
+        requests.complete(key, BLOCK);
+        assertEquals(50 * MILLIS, requests.getTimeoutNanos());
+    }
+
+    @Test
+    void expiredRequestSnubsThePeerAndBacksOff() {
+        RequestQueue requests = queue(4, 16);
+        long first = RequestQueue.blockKey(0, 0);
+        long second = RequestQueue.blockKey(1, 0);
+        long sentAt = requests.add(first);
+        requests.add(second);
+        long timeout = requests.getTimeoutNanos();
+
+        now += timeout;
+        assertTrue(requests.timedOut(first, sentAt));
+        assertTrue(requests.isSnubbed());
+        assertFalse(requests.contains(first));
+        // Snubbed peers get one request at a time, and one is still out
+        assertFalse(requests.hasRoom());
+        assertEquals(timeout * 2, requests.getTimeoutNanos());
+
+        // Any block arriving ends the snub and the back-off
+        now += 10 * MILLIS;
+        requests.complete(second, BLOCK);
+        assertFalse(requests.isSnubbed());
+        assertTrue(requests.hasRoom());
+    }
+
+    @Test
+    void backOffIsCapped() {
+        RequestQueue requests = queue(2, 16);
+        long base = requests.getTimeoutNanos();
+        for (int i = 0; i < 10; i++) {
+            long key = RequestQueue.blockKey(i, 0);
+            requests.timedOut(key, requests.add(key));
+        }
+        assertEquals(Math.min(60_000 * MILLIS, base << 4), requests.getTimeoutNanos());
+    }
+
+    @Test
+    void staleDeadlinesAreIgnored() {
+        RequestQueue requests = queue(2, 16);
+        long key = RequestQueue.blockKey(3, 0);
+        long firstSend = requests.add(key);
+
+        // Answered before its deadline
+        now += 5 * MILLIS;
+        requests.complete(key, BLOCK);
+        assertFalse(requests.timedOut(key, firstSend));
+
+        // Re-sent: the old deadline no longer applies, the new one does
+        now += 5 * MILLIS;
+        long resend = requests.add(key);
+        assertFalse(requests.timedOut(key, firstSend));
+        assertTrue(requests.contains(key));
+        assertTrue(requests.timedOut(key, resend));
+        assertFalse(requests.contains(key));
+    }
+
+    @Test
+    void clearReturnsEveryOutstandingRequestInOrder() {
+        RequestQueue requests = queue(4, 16);
+        long a = RequestQueue.blockKey(5, 0);
+        long b = RequestQueue.blockKey(5, BLOCK);
+        long c = RequestQueue.blockKey(2, 0);
+        requests.add(a);
+        requests.add(b);
+        requests.add(c);
+        assertTrue(requests.remove(b));
+        assertFalse(requests.remove(b));
+
+        assertEquals(List.of(a, c), requests.clear());
+        assertEquals(0, requests.size());
+        assertTrue(requests.hasRoom());
+    }
+
+    /**
+     * Send count blocks spacing ms apart, each answered rtt ms after it was sent
+     */
+    private void deliver(RequestQueue requests, int count, long spacingMillis, long rttMillis) {
+        long start = now;
+        for (int i = 0; i < count; i++) {
+            now = start + i * spacingMillis * MILLIS;
+            requests.add(RequestQueue.blockKey(i, 0));
+        }
+        for (int i = 0; i < count; i++) {
+            now = start + (i * spacingMillis + rttMillis) * MILLIS;
+            requests.complete(RequestQueue.blockKey(i, 0), BLOCK);
+        }
+    }
+}
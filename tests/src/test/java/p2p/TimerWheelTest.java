@@ -0,0 +1,81 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    void itemExpiresOnceItsDeadlineHasPassed() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8);
+        long now = System.nanoTime();
+        wheel.schedule("a", now + 50 * MILLIS);
+
+        assertTrue(wheel.expire(now + 20 * MILLIS).isEmpty());
+        assertEquals(1, wheel.size());
+        assertEquals(List.of("a"), wheel.expire(now + 70 * MILLIS));
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.expire(now + 200 * MILLIS).isEmpty());
+    }
+
+    @Test
+    void neverExpiresBeforeTheDeadline() {
+        TimerWheel<Long> wheel = new TimerWheel<>(10, 16);
+        long now = System.nanoTime();
+        List<Long> deadlines = new ArrayList<>();
+        for (long offset = 1; offset < 300 * MILLIS; offset += 7 * MILLIS + 12345) {
+            deadlines.add(now + offset);
+            wheel.schedule(now + offset, now + offset);
+        }
+
+        List<Long> expired = new ArrayList<>();
+        for (long t = now; t < now + 400 * MILLIS; t += 3 * MILLIS) {
+            for (long deadline : wheel.expire(t)) {
+                assertTrue(deadline <= t, "expired " + (deadline - t) + "ns early");
+                expired.add(deadline);
+            }
+        }
+        assertEquals(deadlines, expired);
+    }
+
+    @Test
+    void deadlinesMoreThanOneRotationAwayWaitForTheirTick() {
+        // 4 slots of 10 ms: one rotation is 40 ms
+        TimerWheel<String> wheel = new TimerWheel<>(10, 4);
+        long now = System.nanoTime();
+        wheel.schedule("near", now + 15 * MILLIS);
+        wheel.schedule("far", now + 95 * MILLIS);
+
+        assertEquals(List.of("near"), wheel.expire(now + 50 * MILLIS));
+        assertTrue(wheel.expire(now + 80 * MILLIS).isEmpty());
+        assertEquals(List.of("far"), wheel.expire(now + 110 * MILLIS));
+    }
+
+    @Test
+    void deadlineAlreadyPastExpiresOnTheNextTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8);
+        long now = System.nanoTime();
+        wheel.expire(now + 100 * MILLIS);
+        wheel.schedule("late", now + 10 * MILLIS);
+
+        assertEquals(List.of("late"), wheel.expire(now + 110 * MILLIS));
+    }
+
+    @Test
+    void itemsSharingATickAllExpire() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(10, 8);
+        long now = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(i, now + 30 * MILLIS);
+        }
+        assertEquals(100, wheel.size());
+        assertEquals(100, wheel.expire(now + 50 * MILLIS).size());
+        assertEquals(0, wheel.size());
+    }
+}